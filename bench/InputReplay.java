@@ -0,0 +1,173 @@
+import java.awt.Graphics2D;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import javax.swing.JComboBox;
+import javax.swing.SwingUtilities;
+
+/**
+ * Replays an input log recorded with -Dtubes.record against a canvas
+ * without a display, and reports the latency from each event to the end of
+ * the paint that follows it.
+ *
+ * The canvas is restored to the recorded size, design and view. Each event
+ * is then dispatched on the EDT and the canvas painted into an image right
+ * after. Mouse and wheel events go through the canvas's listeners, the
+ * angle choice through the angle box, and buttons and keys call the canvas
+ * method they are bound to. At the original speed an event is due at its
+ * recorded time, and its latency runs from then, so time spent catching up
+ * after a slow frame counts as it would for the user. At maximum speed
+ * events are sent back to back and latency runs from the send.
+ *
+ *   java -Dtubes.open=bridge.tubes -Dtubes.record=session.log -cp out Main
+ *   java -Djava.awt.headless=true -cp out InputReplay session.log
+ *
+ * Options, as system properties:
+ *   replay.speed   original or max, default original
+ */
+public class InputReplay {
+
+    private static final String[] TYPE_NAMES = {"", "press", "drag", "release", "wheel", "angle",
+            "add", "delete", "undo", "redo", "nudge", "abort"};
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("Usage: java InputReplay <input log>");
+            System.exit(2);
+        }
+        // Drag input is applied on a timer tick; keep the tick short so that
+        // the paint after an event sees it applied
+        if (System.getProperty("tubes.maxFps") == null) {
+            System.setProperty("tubes.maxFps", "1000");
+        }
+        boolean maxSpeed = "max".equals(System.getProperty("replay.speed", "original"));
+
+        InputLog log;
+        try (InputStream in = new FileInputStream(args[0])) {
+            log = InputLog.read(in);
+        }
+        int width = Math.max(1, log.viewWidth), height = Math.max(1, log.viewHeight);
+
+        DrawingCanvas[] holder = new DrawingCanvas[1];
+        JComboBox<String> angleBox = new JComboBox<>(DrawingCanvas.ANGLE_OPTIONS);
+        SwingUtilities.invokeAndWait(() -> {
+            DrawingCanvas canvas = new DrawingCanvas(angleBox);
+            canvas.setSize(width, height);
+            canvas.loadTubes(log.scene);
+            canvas.setView(log.scale, log.offsetX, log.offsetY);
+            holder[0] = canvas;
+        });
+        DrawingCanvas canvas = holder[0];
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = image.createGraphics();
+        SwingUtilities.invokeAndWait(() -> canvas.paint(g2d)); // First full render, not counted
+
+        int count = log.entries.size();
+        long[][] latencies = new long[TYPE_NAMES.length][count];
+        int[] counts = new int[TYPE_NAMES.length];
+        long start = System.nanoTime();
+        for (InputLog.Entry entry : log.entries) {
+            long due = start + entry.timeNanos;
+            if (maxSpeed) {
+                due = System.nanoTime();
+            } else {
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                }
+            }
+            long[] done = new long[1];
+            SwingUtilities.invokeAndWait(() -> {
+                apply(canvas, angleBox, entry);
+                canvas.paint(g2d);
+                done[0] = System.nanoTime();
+            });
+            latencies[entry.type][counts[entry.type]++] = done[0] - due;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long recorded = count > 0 ? log.entries.get(count - 1).timeNanos : 0;
+        System.out.printf(Locale.ROOT, "%d events, %d tubes, %dx%d, recorded %.2f s, replayed in %.2f s at %s speed%n",
+                count, log.scene.size(), width, height, recorded / 1e9, elapsed / 1e9,
+                maxSpeed ? "max" : "original");
+        System.out.printf("%-8s %7s %9s %9s %9s%n", "event", "count", "p50 ms", "p99 ms", "max ms");
+        long[] all = new long[count];
+        int total = 0;
+        for (int type = 1; type < TYPE_NAMES.length; type++) {
+            long[] sorted = Arrays.copyOf(latencies[type], counts[type]);
+            System.arraycopy(sorted, 0, all, total, sorted.length);
+            total += sorted.length;
+            report(TYPE_NAMES[type], sorted);
+        }
+        report("all", all);
+        System.exit(0);
+    }
+
+    private static void apply(DrawingCanvas canvas, JComboBox<String> angleBox, InputLog.Entry entry) {
+        switch (entry.type) {
+            case InputLog.ANGLE:
+                angleBox.setSelectedIndex(Math.min(entry.angleIndex, angleBox.getItemCount() - 1));
+                break;
+            case InputLog.ADD_TUBE:
+                double[] values = entry.tube;
+                Tube tube = new Tube(values[0], values[1], values[2], values[3], values[4]);
+                tube.setRotationAngle(values[5]);
+                canvas.addTube(tube);
+                break;
+            case InputLog.DELETE:
+                canvas.deleteSelectedTube();
+                break;
+            case InputLog.UNDO:
+                canvas.undo();
+                break;
+            case InputLog.REDO:
+                canvas.redo();
+                break;
+            case InputLog.NUDGE:
+                canvas.nudgeSelectedTube(entry.dx, entry.dy);
+                break;
+            case InputLog.ABORT:
+                canvas.abortGesture();
+                break;
+            default:
+                canvas.dispatchEvent(toEvent(canvas, entry));
+        }
+    }
+
+    private static MouseEvent toEvent(DrawingCanvas canvas, InputLog.Entry entry) {
+        long when = System.currentTimeMillis();
+        switch (entry.type) {
+            case InputLog.PRESS:
+                return new MouseEvent(canvas, MouseEvent.MOUSE_PRESSED, when, entry.modifiers,
+                        entry.x, entry.y, 1, false, entry.button);
+            case InputLog.DRAG:
+                return new MouseEvent(canvas, MouseEvent.MOUSE_DRAGGED, when, entry.modifiers,
+                        entry.x, entry.y, 1, false, entry.button);
+            case InputLog.RELEASE:
+                return new MouseEvent(canvas, MouseEvent.MOUSE_RELEASED, when, entry.modifiers,
+                        entry.x, entry.y, 1, false, entry.button);
+            default:
+                return new MouseWheelEvent(canvas, MouseEvent.MOUSE_WHEEL, when, entry.modifiers,
+                        entry.x, entry.y, entry.x, entry.y, 0, false, MouseWheelEvent.WHEEL_UNIT_SCROLL, 1,
+                        (int) Math.round(entry.wheelRotation), entry.wheelRotation);
+        }
+    }
+
+    private static void report(String name, long[] sorted) {
+        if (sorted.length == 0) {
+            return;
+        }
+        Arrays.sort(sorted);
+        System.out.printf(Locale.ROOT, "%-8s %7d %9.2f %9.2f %9.2f%n", name, sorted.length,
+                percentile(sorted, 50) / 1e6, percentile(sorted, 99) / 1e6,
+                sorted[sorted.length - 1] / 1e6);
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+    }
+}
@@ -0,0 +1,137 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Locale;
+
+/**
+ * Headless checks of the render pipeline that timing alone would not catch.
+ * Each prints one line and the run exits with status 1 if any fails, so it
+ * can gate a CI job next to SceneHarness.
+ *
+ *   javac -d out engine/*.java src/*.java bench/*.java
+ *   java -Djava.awt.headless=true -cp out RenderCheck
+ *
+ * Checks:
+ *   dots   zoomed out, the static layer and a tile merge tiny tubes into
+ *          density dots, so they make fewer draw calls than there are tubes
+ *   raster QuadRasterizer and Graphics2D draw the same seeded scenes at
+ *          several scales to within MAX_PIXEL_DELTA per colour channel.
+ *          Java2D normally nudges strokes to whole pixels, which no
+ *          analytic renderer matches, so this compares against pure strokes
+ */
+public class RenderCheck {
+
+    private static final int WIDTH = 1200;
+    private static final int HEIGHT = 800;
+    private static final Color BACKGROUND = Color.WHITE;
+
+    // Worst seen is 36, on thin walls at scale 0.3 where Java2D's coverage
+    // samples and the exact overlap differ most; a misplaced edge is 100+
+    private static final int MAX_PIXEL_DELTA = 48;
+    private static final double MAX_MEAN_DELTA = 4;
+
+    private static boolean failed = false;
+
+    public static void main(String[] args) {
+        TubeStore store = new HeapTubeStore();
+        new SceneGenerator(1).generate(SceneGenerator.Kind.TRUSS, 100000, store);
+        SpatialIndex index = new SpatialIndex(store, 128);
+        index.rebuild();
+
+        checkDots(store, index);
+        for (SceneGenerator.Kind kind : new SceneGenerator.Kind[] {
+                SceneGenerator.Kind.TRUSS, SceneGenerator.Kind.CLUTTER}) {
+            TubeStore scene = new HeapTubeStore();
+            new SceneGenerator(3).generate(kind, 3000, scene);
+            for (double scale : new double[] {0.3, 1, 3}) {
+                checkRaster(kind.name().toLowerCase(Locale.ROOT), scene, scale);
+            }
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    /**
+     * Renders the whole scene zoomed out far enough that every tube is
+     * below the dot size, through the static layer and through one tile.
+     */
+    private static void checkDots(TubeStore store, SpatialIndex index) {
+        double scale = 0.01; // A 120-unit truss panel is 1.2 pixels long
+        Camera camera = new Camera();
+        camera.setView(scale, 0, 0);
+        IntList ids = new IntList();
+        Rectangle2D area = new Rectangle2D.Double();
+
+        StaticLayer layer = new StaticLayer();
+        layer.get(null, WIDTH, HEIGHT, BACKGROUND, store, index, camera, 1, -1, RenderQuality.FULL);
+        camera.visibleWorld(WIDTH, HEIGHT, area);
+        index.query(area, ids);
+        report("dots", "static layer", layer.getDrawCalls(), ids.size());
+
+        BufferedImage tile = new BufferedImage(TileCache.TILE_SIZE, TileCache.TILE_SIZE,
+                BufferedImage.TYPE_INT_RGB);
+        area.setRect(0, 0, TileCache.TILE_SIZE / scale, TileCache.TILE_SIZE / scale);
+        index.query(area, ids);
+        int calls = TileCache.render(tile, 0, 0, scale, BACKGROUND, store, ids, RenderQuality.FULL);
+        report("dots", "tile", calls, ids.size());
+    }
+
+    /**
+     * Draws the scene with TubePainter at full detail and with the
+     * rasterizer, from an offset that is not on a pixel boundary, and
+     * compares them pixel by pixel.
+     */
+    private static void checkRaster(String scene, TubeStore store, double scale) {
+        int width = 600, height = 400;
+        double offsetX = 13.3, offsetY = 7.7;
+        IntList ids = new IntList();
+        for (int id = 0; id < store.size(); id++) {
+            ids.add(id);
+        }
+
+        BufferedImage painted = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = painted.createGraphics();
+        g2d.setColor(BACKGROUND);
+        g2d.fillRect(0, 0, width, height);
+        TubePainter painter = new TubePainter();
+        RenderQuality.FULL.apply(g2d, painter);
+        painter.setLevelOfDetail(0, 0, 0);
+        g2d.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+        g2d.translate(offsetX, offsetY);
+        g2d.scale(scale, scale);
+        painter.paintTubes(g2d, store, ids, -1);
+        g2d.dispose();
+
+        BufferedImage rasterized = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        new QuadRasterizer().render(((DataBufferInt) rasterized.getRaster().getDataBuffer()).getData(),
+                width, height, BACKGROUND, store, ids, -1, scale, offsetX, offsetY, false);
+
+        int max = 0;
+        long sum = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int a = painted.getRGB(x, y), b = rasterized.getRGB(x, y);
+                int delta = 0;
+                for (int shift = 0; shift < 24; shift += 8) {
+                    delta = Math.max(delta, Math.abs(((a >> shift) & 0xFF) - ((b >> shift) & 0xFF)));
+                }
+                max = Math.max(max, delta);
+                sum += delta;
+            }
+        }
+        double mean = (double) sum / (width * height);
+        boolean ok = max <= MAX_PIXEL_DELTA && mean <= MAX_MEAN_DELTA;
+        failed |= !ok;
+        System.out.printf(Locale.ROOT, "%-6s %-6s %-7s x%-5s max delta %3d, mean %.2f%n",
+                "raster", ok ? "ok" : "FAILED", scene, scale, max, mean);
+    }
+
+    private static void report(String check, String target, int drawCalls, int tubes) {
+        boolean ok = tubes > 0 && drawCalls < tubes;
+        failed |= !ok;
+        System.out.printf(Locale.ROOT, "%-6s %-6s %-13s %7d draw calls for %7d tubes%n",
+                check, ok ? "ok" : "FAILED", target, drawCalls, tubes);
+    }
+}
@@ -0,0 +1,249 @@
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Builds synthetic designs of a given size for benchmarks and tests:
+ * planar trusses, space frames seen from above, pallet racks and random
+ * clutter. The same seed and settings always give the same tubes.
+ *
+ * Structures are laid out in rows, left to right. Each member is a tube
+ * from one node to another, so members meet and overlap at the joints as
+ * in a real frame. Member sections vary randomly around a base size; the
+ * scale stretches every length and section alike. Density packs the
+ * structures closer: at 1 they have a gap of their own size's order, at 2
+ * they touch, and above that they overlap.
+ */
+final class SceneGenerator {
+
+    enum Kind {
+        // World area per tube at scale 1, gaps included, for laying out rows
+        TRUSS(10000), SPACE_FRAME(5500), RACK(42000), CLUTTER(4800);
+
+        final double areaPerTube;
+
+        Kind(double areaPerTube) {
+            this.areaPerTube = areaPerTube;
+        }
+
+        /**
+         * Parses a name such as "space-frame" or "rack", ignoring case.
+         */
+        static Kind parse(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+
+    private static final double SECTION = 40;     // Base member section, in world units
+    private static final double GAP = 200;        // Gap between structures at density 1
+    private static final double ROW_WIDTH = 6000; // Narrowest row, before scaling
+
+    private final Random random;
+    private double scale = 1.0;
+    private double sizeSpread = 0.25;
+    private double density = 1.0;
+
+    // Layout cursor and the tubes still to add
+    private TubeStore out;
+    private int remaining;
+    private double cursorX, cursorY, rowHeight, rowWidth;
+
+    public SceneGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Sets the factor every length and section is multiplied by.
+     */
+    public void setScale(double scale) {
+        this.scale = scale;
+    }
+
+    /**
+     * Sets how far member sections vary, as a fraction of their base size.
+     */
+    public void setSizeSpread(double sizeSpread) {
+        this.sizeSpread = sizeSpread;
+    }
+
+    /**
+     * Sets how closely structures are packed; above 2 they overlap.
+     */
+    public void setDensity(double density) {
+        this.density = density;
+    }
+
+    /**
+     * Adds count tubes of the given kind to the store. The last structure
+     * is cut short if needed to hit the count exactly.
+     */
+    public void generate(Kind kind, int count, TubeStore out) {
+        this.out = out;
+        this.remaining = count;
+        cursorX = cursorY = rowHeight = 0;
+        // Rows about as wide as the whole layout is tall
+        rowWidth = Math.max(ROW_WIDTH, Math.sqrt(count * kind.areaPerTube)) * scale;
+        while (remaining > 0) {
+            switch (kind) {
+                case TRUSS:
+                    truss();
+                    break;
+                case SPACE_FRAME:
+                    spaceFrame();
+                    break;
+                case RACK:
+                    rack();
+                    break;
+                default:
+                    clutter();
+                    break;
+            }
+        }
+        this.out = null;
+    }
+
+    /**
+     * A Warren truss with verticals: top and bottom chords and alternating
+     * diagonals across 6 to 15 panels.
+     */
+    private void truss() {
+        int panels = 6 + random.nextInt(10);
+        double panel = 120 * scale, height = 100 * scale;
+        double chord = section(1.0), web = section(0.6);
+        double x0 = cursorX, y0 = cursorY;
+        for (int i = 0; i < panels; i++) {
+            double left = x0 + i * panel, right = left + panel;
+            member(left, y0, right, y0, chord);
+            member(left, y0 + height, right, y0 + height, chord);
+            member(left, y0 + height, left, y0, web);
+            if (i % 2 == 0) {
+                member(left, y0 + height, right, y0, web);
+            } else {
+                member(left, y0, right, y0 + height, web);
+            }
+        }
+        member(x0 + panels * panel, y0 + height, x0 + panels * panel, y0, web);
+        advance(panels * panel, height);
+    }
+
+    /**
+     * A double-layer grid seen from above: the top grid, the bottom grid
+     * offset by half a cell, and the diagonals joining each bottom node to
+     * the four top nodes around it.
+     */
+    private void spaceFrame() {
+        int cols = 4 + random.nextInt(7), rows = 4 + random.nextInt(7);
+        double cell = 150 * scale;
+        double top = section(1.0), bottom = section(0.8), diagonal = section(0.5);
+        double x0 = cursorX, y0 = cursorY;
+        for (int r = 0; r <= rows; r++) {
+            for (int c = 0; c <= cols; c++) {
+                double x = x0 + c * cell, y = y0 + r * cell;
+                if (c < cols) {
+                    member(x, y, x + cell, y, top);
+                }
+                if (r < rows) {
+                    member(x, y, x, y + cell, top);
+                }
+            }
+        }
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                double x = x0 + (c + 0.5) * cell, y = y0 + (r + 0.5) * cell;
+                if (c < cols - 1) {
+                    member(x, y, x + cell, y, bottom);
+                }
+                if (r < rows - 1) {
+                    member(x, y, x, y + cell, bottom);
+                }
+                double half = cell / 2;
+                member(x, y, x - half, y - half, diagonal);
+                member(x, y, x + half, y - half, diagonal);
+                member(x, y, x - half, y + half, diagonal);
+                member(x, y, x + half, y + half, diagonal);
+            }
+        }
+        advance(cols * cell, rows * cell);
+    }
+
+    /**
+     * A pallet rack seen from the front: uprights, a beam per bay and level,
+     * and cross bracing in the end bays.
+     */
+    private void rack() {
+        int bays = 3 + random.nextInt(6), levels = 3 + random.nextInt(4);
+        double bay = 270 * scale, level = 150 * scale, height = levels * level;
+        double upright = section(1.0), beam = section(0.8), brace = section(0.4);
+        double x0 = cursorX, y0 = cursorY;
+        for (int i = 0; i <= bays; i++) {
+            member(x0 + i * bay, y0, x0 + i * bay, y0 + height, upright);
+        }
+        for (int i = 0; i < bays; i++) {
+            double left = x0 + i * bay;
+            for (int j = 1; j <= levels; j++) {
+                double y = y0 + height - j * level + level / 2;
+                member(left, y, left + bay, y, beam);
+            }
+            if (i == 0 || i == bays - 1) {
+                member(left, y0, left + bay, y0 + height, brace);
+                member(left, y0 + height, left + bay, y0, brace);
+            }
+        }
+        advance(bays * bay, height);
+    }
+
+    /**
+     * A heap of 100 tubes of random size and angle in a box.
+     */
+    private void clutter() {
+        double width = 600 * scale, height = 400 * scale;
+        double x0 = cursorX, y0 = cursorY;
+        for (int i = 0; i < 100; i++) {
+            double length = (60 + random.nextDouble() * 150) * scale;
+            double section = section(0.8);
+            double angle = random.nextDouble() * Math.PI;
+            double x = x0 + random.nextDouble() * width, y = y0 + random.nextDouble() * height;
+            double dx = Math.cos(angle) * length / 2, dy = Math.sin(angle) * length / 2;
+            member(x - dx, y - dy, x + dx, y + dy, section);
+        }
+        advance(width, height);
+    }
+
+    /**
+     * Draws a member section: the base size times the factor, varied by
+     * the size spread.
+     */
+    private double section(double factor) {
+        double variation = 1 + sizeSpread * (2 * random.nextDouble() - 1);
+        return Math.max(1, SECTION * factor * variation * scale);
+    }
+
+    /**
+     * Adds a tube from (x1, y1) to (x2, y2), unless the count is reached.
+     */
+    private void member(double x1, double y1, double x2, double y2, double section) {
+        if (remaining <= 0) {
+            return;
+        }
+        double dx = x2 - x1, dy = y2 - y1;
+        double length = Math.sqrt(dx * dx + dy * dy);
+        double width = Math.min(section, length);
+        double thickness = Math.max(1, width * 0.08);
+        out.add((x1 + x2) / 2, (y1 + y2) / 2, length, width, thickness, Math.atan2(dy, dx));
+        remaining--;
+    }
+
+    /**
+     * Moves the cursor past a structure of the given size, starting a new
+     * row once the current one is full.
+     */
+    private void advance(double width, double height) {
+        double gap = GAP * scale * (2 / density - 1);
+        rowHeight = Math.max(rowHeight, height);
+        cursorX += width + gap;
+        if (cursorX > rowWidth) {
+            cursorX = 0;
+            cursorY += rowHeight + gap;
+            rowHeight = 0;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+import java.awt.Graphics2D;
+import java.awt.event.InputEvent;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Locale;
+import javax.swing.JComboBox;
+import javax.swing.SwingUtilities;
+
+/**
+ * Drives a DrawingCanvas through scripted gestures without a display and
+ * reports frame times and heap growth, so it runs on a plain CI machine.
+ *
+ * A generated scene is loaded, then each phase sends mouse events to the
+ * canvas on the EDT and paints it into an image after every event, timing
+ * the event and the paint together as one frame. The phases are: dragging
+ * a tube in a circle, rotating it with SHIFT, zooming in and out with the
+ * wheel, and panning with the middle button. The heap is measured after a
+ * full GC before and after the gestures.
+ *
+ *   javac -d out engine/*.java src/*.java bench/*.java
+ *   java -Djava.awt.headless=true -cp out SceneHarness
+ *
+ * Options, as system properties:
+ *   harness.scene    truss, space-frame, rack or clutter, default truss
+ *   harness.tubes    tube count, default 100000
+ *   harness.seed     generator seed, default 1
+ *   harness.density  structure packing, default 1; above 2 they overlap
+ *   harness.frames   frames per phase, default 300
+ */
+public class SceneHarness {
+
+    private static final int WIDTH = 1200;
+    private static final int HEIGHT = 800;
+
+    private final DrawingCanvas canvas;
+    private final BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+    private final Graphics2D g2d = image.createGraphics();
+    private final long[] frameNanos;
+    private int frame;
+
+    private SceneHarness(DrawingCanvas canvas, int frames) {
+        this.canvas = canvas;
+        this.frameNanos = new long[frames];
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Drag input is applied on a timer tick; keep the tick short so that
+        // each frame sees the previous event applied
+        if (System.getProperty("tubes.maxFps") == null) {
+            System.setProperty("tubes.maxFps", "1000");
+        }
+        SceneGenerator.Kind kind = SceneGenerator.Kind.parse(System.getProperty("harness.scene", "truss"));
+        int tubes = Integer.getInteger("harness.tubes", 100000);
+        long seed = Long.getLong("harness.seed", 1);
+        int frames = Integer.getInteger("harness.frames", 300);
+        double density = Double.parseDouble(System.getProperty("harness.density", "1"));
+
+        TubeStore scene = new HeapTubeStore();
+        SceneGenerator generator = new SceneGenerator(seed);
+        generator.setDensity(density);
+        generator.generate(kind, tubes, scene);
+
+        SceneHarness[] harness = new SceneHarness[1];
+        SwingUtilities.invokeAndWait(() -> {
+            DrawingCanvas canvas = new DrawingCanvas(new JComboBox<>(new String[] {"Free"}));
+            canvas.setSize(WIDTH, HEIGHT);
+            canvas.loadTubes(scene);
+            harness[0] = new SceneHarness(canvas, frames);
+        });
+        SceneHarness h = harness[0];
+
+        System.out.printf(Locale.ROOT, "scene %s, %d tubes, seed %d, density %.1f, %dx%d%n",
+                kind.name().toLowerCase(Locale.ROOT), tubes, seed, density, WIDTH, HEIGHT);
+        h.paintOnce(); // First full render, not counted
+        long heapBefore = usedHeapAfterGc();
+        long gcCountBefore = gcCount(), gcTimeBefore = gcTime();
+
+        System.out.printf("%-8s %7s %9s %9s %9s%n", "phase", "frames", "p50 ms", "p99 ms", "max ms");
+        int[] grab = h.findGrabPoint();
+        if (grab != null) {
+            h.drag(grab, frames, false);
+            h.report("drag");
+            h.drag(grab, frames, true);
+            h.report("rotate");
+        } else {
+            System.out.println("no tube in view to drag");
+        }
+        h.zoom(frames);
+        h.report("zoom");
+        h.pan(frames);
+        h.report("pan");
+
+        long gcCount = gcCount() - gcCountBefore, gcTime = gcTime() - gcTimeBefore;
+        long heapAfter = usedHeapAfterGc();
+        System.out.printf(Locale.ROOT, "heap %.1f MB after load, %+.2f MB after gestures; GC %d runs, %d ms%n",
+                heapBefore / 1e6, (heapAfter - heapBefore) / 1e6, gcCount, gcTime);
+        System.exit(0);
+    }
+
+    /**
+     * Returns a screen point on the wall of a tube near the middle of the
+     * view that a click there would select, or null if there is none.
+     */
+    private int[] findGrabPoint() throws Exception {
+        int[][] result = new int[1][];
+        SwingUtilities.invokeAndWait(() -> {
+            TubeStore store = canvas.getTubeStore();
+            double best = Double.MAX_VALUE;
+            for (int id = 0; id < store.size(); id++) {
+                // A point in the wall, along the tube's axis
+                double offset = store.length(id) / 2 - store.thickness(id) / 2;
+                int x = (int) Math.round(store.x(id) + store.cos(id) * offset);
+                int y = (int) Math.round(store.y(id) + store.sin(id) * offset);
+                double distance = Math.hypot(x - WIDTH / 2.0, y - HEIGHT / 2.0);
+                if (x > 150 && x < WIDTH - 150 && y > 150 && y < HEIGHT - 150 && distance < best
+                        && store.contains(id, x, y, 0)) {
+                    best = distance;
+                    result[0] = new int[] {x, y};
+                }
+            }
+        });
+        return result[0];
+    }
+
+    /**
+     * Presses on the point, moves in a circle around it for the given
+     * number of frames, and releases; with rotate, SHIFT is held.
+     */
+    private void drag(int[] grab, int frames, boolean rotate) throws Exception {
+        int modifiers = InputEvent.BUTTON1_DOWN_MASK | (rotate ? InputEvent.SHIFT_DOWN_MASK : 0);
+        send(new MouseEvent(canvas, MouseEvent.MOUSE_PRESSED, 0, modifiers,
+                grab[0], grab[1], 1, false, MouseEvent.BUTTON1), false);
+        int x = grab[0], y = grab[1];
+        for (int i = 1; i <= frames; i++) {
+            double angle = 2 * Math.PI * i / frames;
+            x = grab[0] + (int) Math.round(100 * Math.sin(angle));
+            y = grab[1] + (int) Math.round(100 * (1 - Math.cos(angle)));
+            send(new MouseEvent(canvas, MouseEvent.MOUSE_DRAGGED, 0, modifiers,
+                    x, y, 1, false, MouseEvent.BUTTON1), true);
+        }
+        send(new MouseEvent(canvas, MouseEvent.MOUSE_RELEASED, 0, rotate ? InputEvent.SHIFT_DOWN_MASK : 0,
+                x, y, 1, false, MouseEvent.BUTTON1), false);
+    }
+
+    /**
+     * Turns the wheel in and out around the middle of the view.
+     */
+    private void zoom(int frames) throws Exception {
+        for (int i = 0; i < frames; i++) {
+            int notches = (i / 20) % 2 == 0 ? -1 : 1; // 20 notches in, 20 out
+            send(new MouseWheelEvent(canvas, MouseEvent.MOUSE_WHEEL, 0, 0, WIDTH / 2, HEIGHT / 2,
+                    0, false, MouseWheelEvent.WHEEL_UNIT_SCROLL, 1, notches), true);
+        }
+    }
+
+    /**
+     * Pans with the middle button, left and right across the scene.
+     */
+    private void pan(int frames) throws Exception {
+        int x = WIDTH / 2, y = HEIGHT / 2;
+        send(new MouseEvent(canvas, MouseEvent.MOUSE_PRESSED, 0, InputEvent.BUTTON2_DOWN_MASK,
+                x, y, 1, false, MouseEvent.BUTTON2), false);
+        for (int i = 0; i < frames; i++) {
+            x += (i / 50) % 2 == 0 ? 8 : -8;
+            send(new MouseEvent(canvas, MouseEvent.MOUSE_DRAGGED, 0, InputEvent.BUTTON2_DOWN_MASK,
+                    x, y, 1, false, MouseEvent.BUTTON2), true);
+        }
+        send(new MouseEvent(canvas, MouseEvent.MOUSE_RELEASED, 0, 0,
+                x, y, 1, false, MouseEvent.BUTTON2), false);
+    }
+
+    /**
+     * Dispatches the event on the EDT and, for a frame, paints the canvas
+     * and records the time of both.
+     */
+    private void send(MouseEvent event, boolean isFrame) throws Exception {
+        SwingUtilities.invokeAndWait(() -> {
+            long start = System.nanoTime();
+            canvas.dispatchEvent(event);
+            if (isFrame) {
+                canvas.paint(g2d);
+                frameNanos[frame++] = System.nanoTime() - start;
+            }
+        });
+        // Lets the frame timer apply input held back for the next tick
+        Thread.sleep(1);
+    }
+
+    private void paintOnce() throws Exception {
+        SwingUtilities.invokeAndWait(() -> canvas.paint(g2d));
+    }
+
+    private void report(String phase) {
+        long[] sorted = Arrays.copyOf(frameNanos, frame);
+        Arrays.sort(sorted);
+        if (sorted.length > 0) {
+            System.out.printf(Locale.ROOT, "%-8s %7d %9.2f %9.2f %9.2f%n", phase, sorted.length,
+                    percentile(sorted, 50) / 1e6, percentile(sorted, 99) / 1e6,
+                    sorted[sorted.length - 1] / 1e6);
+        }
+        frame = 0;
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, bean.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, bean.getCollectionTime());
+        }
+        return time;
+    }
+}
@@ -0,0 +1,305 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Turns a directory of saved designs into cut lists without a display.
+ *
+ * Every design file (DesignFile.EXTENSION) in the input directory is read,
+ * validated and analysed for joints, and gets one output file in the
+ * output directory: name.cut.csv listing each tube with the joint angles at
+ * its ends, or name.invalid.txt saying what is wrong with it.
+ *
+ * Reading and writing run on virtual threads, one per design, while
+ * parsing and analysis run on a fixed pool of platform threads, one per
+ * core. At most a bounded number of designs are held in memory at once.
+ *
+ * Outputs are written to a temporary file (.batch-name-random.tmp) and
+ * moved into place, so a crash never leaves a partial one; the next run
+ * deletes temporary files of that pattern, and no others. Running again
+ * resumes: designs whose output is newer than the design itself are
+ * skipped, unless --force is given.
+ *
+ *   java -cp out Batch designs/ cutlists/
+ *   java -cp out Main batch designs/ cutlists/
+ *
+ * Options:
+ *   --threads n     analysis threads, default one per core
+ *   --in-flight n   designs held in memory at once, default 4 per thread
+ *   --force         redo designs that already have an output
+ */
+public class Batch {
+
+    private static final String CUT_LIST_SUFFIX = ".cut.csv";
+    private static final String INVALID_SUFFIX = ".invalid.txt";
+    // Temporary outputs are .batch-<output name>-<random>.tmp
+    private static final String TEMP_PREFIX = ".batch-";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // Tubes this close count as joined, for rounding in saved files
+    private static final double JOINT_TOLERANCE = 0.5;
+
+    private final Path outputDir;
+    private final boolean force;
+    private final ExecutorService cpu;
+    private final Semaphore inFlight;
+
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicInteger invalid = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicLong tubes = new AtomicLong();
+
+    private Batch(Path outputDir, boolean force, int threads, int inFlight) {
+        this.outputDir = outputDir;
+        this.force = force;
+        this.cpu = Executors.newFixedThreadPool(threads);
+        this.inFlight = new Semaphore(inFlight);
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> paths = new ArrayList<>();
+        int threads = Runtime.getRuntime().availableProcessors();
+        int inFlight = -1;
+        boolean force = false;
+        for (int i = 0; i < args.length; i++) {
+            if ("--force".equals(args[i])) {
+                force = true;
+            } else if ("--threads".equals(args[i]) && i + 1 < args.length) {
+                threads = Math.max(1, parseCount(args[++i]));
+            } else if ("--in-flight".equals(args[i]) && i + 1 < args.length) {
+                inFlight = Math.max(1, parseCount(args[++i]));
+            } else {
+                paths.add(args[i]);
+            }
+        }
+        if (paths.size() != 2) {
+            usage();
+        }
+        Path inputDir = Paths.get(paths.get(0)), outputDir = Paths.get(paths.get(1));
+        Files.createDirectories(outputDir);
+        Batch batch = new Batch(outputDir, force, threads, inFlight > 0 ? inFlight : 4 * threads);
+        System.exit(batch.run(inputDir) ? 0 : 1);
+    }
+
+    private static int parseCount(String text) {
+        try {
+            return Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            System.err.println("Not a number: " + text);
+            usage();
+            return -1; // Not reached
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: java Batch [--threads n] [--in-flight n] [--force] <design dir> <output dir>");
+        System.exit(2);
+    }
+
+    /**
+     * Processes every design in the directory. Returns whether all of them
+     * produced a cut list.
+     */
+    private boolean run(Path inputDir) throws IOException {
+        removeTempFiles();
+        List<Path> designs = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(inputDir, "*" + DesignFile.EXTENSION)) {
+            for (Path design : stream) {
+                designs.add(design);
+            }
+        }
+        Collections.sort(designs);
+
+        long start = System.nanoTime();
+        try (ExecutorService io = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Path design : designs) {
+                io.submit(() -> process(design));
+            }
+        } finally {
+            cpu.shutdown();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        int processed = done.get() + invalid.get() + failed.get();
+        System.out.printf(Locale.ROOT, "%d designs: %d cut lists, %d invalid, %d failed, %d already done%n",
+                designs.size(), done.get(), invalid.get(), failed.get(), skipped.get());
+        System.out.printf(Locale.ROOT, "%.2f s, %.1f designs/s, %.0f tubes/s%n",
+                seconds, processed / seconds, tubes.get() / seconds);
+        return invalid.get() == 0 && failed.get() == 0;
+    }
+
+    /**
+     * Reads, analyses and writes one design. Runs on its own virtual thread
+     * and hands the analysis to the platform pool.
+     */
+    private void process(Path design) {
+        String name = design.getFileName().toString();
+        String base = name.substring(0, name.length() - DesignFile.EXTENSION.length());
+        Path cutList = outputDir.resolve(base + CUT_LIST_SUFFIX);
+        Path rejected = outputDir.resolve(base + INVALID_SUFFIX);
+        try {
+            if (!force && (isUpToDate(cutList, design) || isUpToDate(rejected, design))) {
+                skipped.incrementAndGet();
+                return;
+            }
+            inFlight.acquire();
+            try {
+                byte[] bytes = Files.readAllBytes(design);
+                Result result = cpu.submit(() -> analyse(name, bytes)).get();
+                Path target = result.valid ? cutList : rejected;
+                writeAtomically(target, result.output);
+                // A design that was fixed, or broken, since the last run
+                Files.deleteIfExists(result.valid ? rejected : cutList);
+                if (result.valid) {
+                    done.incrementAndGet();
+                    tubes.addAndGet(result.tubes);
+                } else {
+                    invalid.incrementAndGet();
+                    System.err.println(name + ": " + result.output.split("\n", 2)[0]);
+                }
+            } finally {
+                inFlight.release();
+            }
+        } catch (IOException | ExecutionException e) {
+            failed.incrementAndGet();
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            System.err.println(name + ": " + cause);
+        } catch (InterruptedException e) {
+            failed.incrementAndGet();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Result {
+        final boolean valid;
+        final String output;
+        final int tubes;
+
+        Result(boolean valid, String output, int tubes) {
+            this.valid = valid;
+            this.output = output;
+            this.tubes = tubes;
+        }
+    }
+
+    /**
+     * Parses, validates and analyses a design. Runs on the platform pool.
+     */
+    private static Result analyse(String name, byte[] bytes) {
+        TubeStore store = new HeapTubeStore();
+        try {
+            DesignFile.parse(new String(bytes, StandardCharsets.UTF_8), store);
+        } catch (IOException e) {
+            return new Result(false, e.getMessage() + "\n", 0);
+        }
+        List<String> problems = DesignFile.validate(store);
+        if (!problems.isEmpty()) {
+            return new Result(false, String.join("\n", problems) + "\n", 0);
+        }
+        Design design = new Design(store, UndoJournal.DEFAULT_BUDGET_BYTES);
+        List<JointAnalysis.Joint> joints = design.findJoints(JOINT_TOLERANCE);
+        return new Result(true, cutList(name, store, joints), design.size());
+    }
+
+    /**
+     * Formats the cut list: one row per tube with its section, its angle,
+     * the steepest joint at each end (blank for a free end) and the number
+     * of tubes meeting it along its side.
+     */
+    private static String cutList(String name, TubeStore store, List<JointAnalysis.Joint> joints) {
+        int size = store.size();
+        double[] startJoint = new double[size], endJoint = new double[size];
+        Arrays.fill(startJoint, -1);
+        Arrays.fill(endJoint, -1);
+        int[] sideJoints = new int[size];
+        for (JointAnalysis.Joint joint : joints) {
+            for (int id : new int[] {joint.first, joint.second}) {
+                if (!joint.isAtEnd(store, id)) {
+                    sideJoints[id]++;
+                } else if ((id == joint.first ? joint.firstOffset : joint.secondOffset) < 0) {
+                    startJoint[id] = Math.max(startJoint[id], joint.angle);
+                } else {
+                    endJoint[id] = Math.max(endJoint[id], joint.angle);
+                }
+            }
+        }
+
+        StringBuilder out = new StringBuilder(64 * size + 128);
+        out.append("# ").append(name).append(": ").append(size).append(" tubes, ")
+                .append(joints.size()).append(" joints\n");
+        out.append("tube,length,width,thickness,angle,start_joint,end_joint,side_joints\n");
+        for (int id = 0; id < size; id++) {
+            out.append(id).append(',');
+            appendNumber(out, store.length(id)).append(',');
+            appendNumber(out, store.width(id)).append(',');
+            appendNumber(out, store.thickness(id)).append(',');
+            appendNumber(out, Math.toDegrees(store.angle(id))).append(',');
+            if (startJoint[id] >= 0) {
+                appendNumber(out, startJoint[id]);
+            }
+            out.append(',');
+            if (endJoint[id] >= 0) {
+                appendNumber(out, endJoint[id]);
+            }
+            out.append(',').append(sideJoints[id]).append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * Appends the value rounded to two decimals, without String.format.
+     */
+    private static StringBuilder appendNumber(StringBuilder out, double value) {
+        long hundredths = Math.round(value * 100);
+        if (hundredths < 0) {
+            out.append('-');
+            hundredths = -hundredths;
+        }
+        out.append(hundredths / 100).append('.');
+        long fraction = hundredths % 100;
+        return out.append(fraction < 10 ? "0" : "").append(fraction);
+    }
+
+    private static boolean isUpToDate(Path output, Path design) throws IOException {
+        return Files.exists(output)
+                && Files.getLastModifiedTime(output).compareTo(Files.getLastModifiedTime(design)) >= 0;
+    }
+
+    private void writeAtomically(Path target, String text) throws IOException {
+        Path temp = Files.createTempFile(outputDir, TEMP_PREFIX + target.getFileName() + "-", TEMP_SUFFIX);
+        try {
+            Files.write(temp, text.getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Deletes outputs a crash left half written. Only files named the way
+     * writeAtomically names them, so other .tmp files are left alone.
+     */
+    private void removeTempFiles() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(outputDir,
+                TEMP_PREFIX + "*" + TEMP_SUFFIX)) {
+            for (Path temp : stream) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+}
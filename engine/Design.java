@@ -0,0 +1,390 @@
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A tube design and the rules for editing it, with no user interface: the
+ * tubes, the spatial index over them and the undo history. Every change
+ * goes through here, so the index and the history always agree with the
+ * store. DrawingCanvas is a Swing view onto one design; batch jobs and
+ * servers use it directly.
+ *
+ * Changes made within a gesture, such as a drag, are collected and become
+ * one undo entry when the gesture is committed. Outside a gesture, quick
+ * repeats of a small edit on the same tube merge into one entry.
+ *
+ * Not thread-safe. Other threads should work on a snapshot().
+ */
+final class Design {
+
+    /**
+     * Told about changes a view cannot see coming, so it can redraw.
+     */
+    interface Listener {
+        /**
+         * A tube was changed behind the caller's back, as by undo, and the
+         * world area it covered before or covers now must be redrawn.
+         */
+        void areaChanged(Rectangle2D bounds);
+
+        /**
+         * The undo history changed size; nanos is how long the history
+         * operation took, or -1 if it was not one to time.
+         */
+        void historyChanged(long oldBytes, long newBytes, long nanos);
+    }
+
+    // Grid cell size of the spatial index, roughly one typical tube
+    static final double INDEX_CELL_SIZE = 128.0;
+
+    private final TubeStore store;
+    private final SpatialIndex index;
+    private final UndoJournal journal;
+    private Listener listener;
+
+    // Open gesture: the tubes it touched and their x, y, angle before it
+    private boolean gestureActive = false;
+    private final IntList gestureIds = new IntList();
+    private double[] gestureOrigins = new double[3 * 4];
+
+    private final Rectangle2D changedBounds = new Rectangle2D.Double();
+
+    /**
+     * Creates an empty design in a store chosen by the tubes.offHeap
+     * property, with the history budget from tubes.undoBudget.
+     */
+    public Design() {
+        this(TubeStore.create(), Long.getLong("tubes.undoBudget", UndoJournal.DEFAULT_BUDGET_BYTES));
+    }
+
+    /**
+     * Creates a design over the given store, indexing the tubes already in it.
+     */
+    public Design(TubeStore store, long historyBudgetBytes) {
+        this.store = store;
+        this.index = new SpatialIndex(store, INDEX_CELL_SIZE);
+        this.journal = new UndoJournal(historyBudgetBytes);
+        index.rebuild();
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the store holding the tubes, for read-only iteration.
+     */
+    public TubeStore getStore() {
+        return store;
+    }
+
+    public SpatialIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the number of tubes, not counting deleted ones.
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Adds a tube on top of the others as an undoable edit. Returns its id.
+     */
+    public int addTube(double x, double y, double length, double width, double thickness, double angle) {
+        TubeEvents.AddTube event = new TubeEvents.AddTube();
+        event.begin();
+        int id = store.add(x, y, length, width, thickness, angle);
+        index.insert(id);
+        recordEdit(new UndoJournal.Add(id));
+        event.end();
+        if (event.shouldCommit()) {
+            event.tubeId = id;
+            event.tubeCount = index.size();
+            event.commit();
+        }
+        return id;
+    }
+
+    /**
+     * Appends every tube of the source store, as when opening a file. The
+     * tubes become part of the baseline rather than undoable edits.
+     */
+    public void load(TubeStore source) {
+        for (int id = 0; id < source.size(); id++) {
+            if (!source.isRemoved(id)) {
+                index.insert(store.add(source.x(id), source.y(id), source.length(id),
+                        source.width(id), source.thickness(id), source.angle(id)));
+            }
+        }
+    }
+
+    /**
+     * Deletes a tube as an undoable edit.
+     */
+    public void deleteTube(int id) {
+        store.remove(id);
+        index.remove(id);
+        recordEdit(new UndoJournal.Delete(id));
+    }
+
+    /**
+     * Moves a tube's centre to (x, y). Within a gesture only the store and
+     * index change; the edit is built once, when the gesture is committed.
+     */
+    public void moveTube(int id, double x, double y) {
+        if (gestureActive) {
+            touch(id);
+            store.setPosition(id, x, y);
+            index.update(id);
+            return;
+        }
+        double oldX = store.x(id), oldY = store.y(id);
+        store.setPosition(id, x, y);
+        index.update(id);
+        recordSmallEdit(new UndoJournal.Move(id, oldX, oldY, x, y));
+    }
+
+    /**
+     * Turns a tube to the given angle, in radians. Within a gesture, as
+     * moveTube, nothing is recorded until the commit.
+     */
+    public void rotateTube(int id, double angle) {
+        if (gestureActive) {
+            touch(id);
+            store.setAngle(id, angle);
+            index.update(id);
+            return;
+        }
+        double previous = store.angle(id);
+        store.setAngle(id, angle);
+        index.update(id);
+        recordSmallEdit(new UndoJournal.Rotate(id, previous, angle));
+    }
+
+    public boolean isGestureActive() {
+        return gestureActive;
+    }
+
+    /**
+     * Starts a gesture. Until it is committed or aborted, changes made to
+     * tubes are collected rather than recorded one by one.
+     */
+    public void beginGesture() {
+        if (gestureActive) {
+            commitGesture();
+        }
+        gestureActive = true;
+        gestureIds.clear();
+    }
+
+    /**
+     * Ends the gesture with one undo entry for everything it changed.
+     * A gesture that changed no geometry, such as a plain click, records
+     * nothing. Returns whether an entry was recorded.
+     */
+    public boolean commitGesture() {
+        if (!gestureActive) {
+            return false;
+        }
+        gestureActive = false;
+        List<UndoJournal.Edit> edits = new ArrayList<>();
+        for (int i = 0; i < gestureIds.size(); i++) {
+            int id = gestureIds.get(i);
+            double x = gestureOrigins[3 * i], y = gestureOrigins[3 * i + 1];
+            double angle = gestureOrigins[3 * i + 2];
+            if (store.x(id) != x || store.y(id) != y) {
+                edits.add(new UndoJournal.Move(id, x, y, store.x(id), store.y(id)));
+            }
+            if (store.angle(id) != angle) {
+                edits.add(new UndoJournal.Rotate(id, angle, store.angle(id)));
+            }
+        }
+        if (edits.isEmpty()) {
+            return false;
+        }
+        recordEdit(edits.size() == 1 ? edits.get(0)
+                : new UndoJournal.Group(edits.toArray(new UndoJournal.Edit[0])));
+        return true;
+    }
+
+    /**
+     * Cancels the gesture and puts every tube it touched back. Returns
+     * whether there was a gesture to cancel.
+     */
+    public boolean abortGesture() {
+        if (!gestureActive) {
+            return false;
+        }
+        gestureActive = false;
+        for (int i = 0; i < gestureIds.size(); i++) {
+            int id = gestureIds.get(i);
+            store.setPosition(id, gestureOrigins[3 * i], gestureOrigins[3 * i + 1]);
+            store.setAngle(id, gestureOrigins[3 * i + 2]);
+            refreshTube(id);
+        }
+        return true;
+    }
+
+    /**
+     * Remembers a tube's values the first time the open gesture changes it.
+     */
+    private void touch(int id) {
+        for (int i = 0; i < gestureIds.size(); i++) {
+            if (gestureIds.get(i) == id) {
+                return;
+            }
+        }
+        int slot = 3 * gestureIds.size();
+        if (slot + 3 > gestureOrigins.length) {
+            gestureOrigins = Arrays.copyOf(gestureOrigins, gestureOrigins.length * 2);
+        }
+        gestureOrigins[slot] = store.x(id);
+        gestureOrigins[slot + 1] = store.y(id);
+        gestureOrigins[slot + 2] = store.angle(id);
+        gestureIds.add(id);
+    }
+
+    /**
+     * Reverts the latest edit. Returns it, or null if there was none.
+     */
+    public UndoJournal.Edit undo() {
+        long old = journal.memoryBytes();
+        TubeEvents.History event = new TubeEvents.History();
+        event.begin();
+        long start = System.nanoTime();
+        UndoJournal.Edit edit = journal.undo(store);
+        long nanos = System.nanoTime() - start;
+        commitHistoryEvent(event, "undo", old);
+        afterHistoryStep(edit, old, nanos);
+        return edit;
+    }
+
+    /**
+     * Re-applies the latest undone edit. Returns it, or null if there was none.
+     */
+    public UndoJournal.Edit redo() {
+        long old = journal.memoryBytes();
+        TubeEvents.History event = new TubeEvents.History();
+        event.begin();
+        long start = System.nanoTime();
+        UndoJournal.Edit edit = journal.redo(store);
+        long nanos = System.nanoTime() - start;
+        commitHistoryEvent(event, "redo", old);
+        afterHistoryStep(edit, old, nanos);
+        return edit;
+    }
+
+    /**
+     * Returns the estimated memory held by the undo history.
+     */
+    public long getHistoryBytes() {
+        return journal.memoryBytes();
+    }
+
+    public long getHistoryBudget() {
+        return journal.getBudgetBytes();
+    }
+
+    public void setHistoryBudget(long bytes) {
+        long old = journal.memoryBytes();
+        journal.setBudgetBytes(bytes);
+        historyChanged(old, -1);
+    }
+
+    /**
+     * Returns every pair of tubes that touch or overlap, within tolerance.
+     */
+    public List<JointAnalysis.Joint> findJoints(double tolerance) {
+        return JointAnalysis.find(store, index, tolerance);
+    }
+
+    /**
+     * Returns a read-only snapshot of the design for background work such
+     * as export or analysis. Cheap to take, and safe to read from any thread
+     * while editing goes on.
+     */
+    public TubeStore snapshot() {
+        TubeEvents.Snapshot event = new TubeEvents.Snapshot();
+        event.begin();
+        TubeStore snapshot = store.snapshot();
+        event.end();
+        if (event.shouldCommit()) {
+            event.tubeCount = index.size();
+            event.commit();
+        }
+        return snapshot;
+    }
+
+    private void recordEdit(UndoJournal.Edit edit) {
+        long old = journal.memoryBytes();
+        TubeEvents.History event = new TubeEvents.History();
+        event.begin();
+        long start = System.nanoTime();
+        journal.record(edit);
+        long nanos = System.nanoTime() - start;
+        commitHistoryEvent(event, "record", old);
+        historyChanged(old, nanos);
+    }
+
+    /**
+     * Records a small edit made outside a gesture, merging it with a quick
+     * repeat of the same edit.
+     */
+    private void recordSmallEdit(UndoJournal.Edit edit) {
+        long old = journal.memoryBytes();
+        TubeEvents.History event = new TubeEvents.History();
+        event.begin();
+        long start = System.nanoTime();
+        journal.recordCoalescing(edit, System.currentTimeMillis());
+        long nanos = System.nanoTime() - start;
+        commitHistoryEvent(event, "record", old);
+        historyChanged(old, nanos);
+    }
+
+    private void commitHistoryEvent(TubeEvents.History event, String operation, long oldHistoryBytes) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.tubeCount = index.size();
+            event.historyBytes = journal.memoryBytes();
+            event.bytesRecorded = event.historyBytes - oldHistoryBytes;
+            event.commit();
+        }
+    }
+
+    private void afterHistoryStep(UndoJournal.Edit edit, long oldHistoryBytes, long nanos) {
+        if (edit != null) {
+            IntList ids = new IntList();
+            edit.collectTubeIds(ids);
+            for (int i = 0; i < ids.size(); i++) {
+                refreshTube(ids.get(i));
+            }
+        }
+        // A step with nothing to undo still took time worth reporting
+        historyChanged(oldHistoryBytes, nanos);
+    }
+
+    private void historyChanged(long oldBytes, long nanos) {
+        if (listener != null) {
+            listener.historyChanged(oldBytes, journal.memoryBytes(), nanos);
+        }
+    }
+
+    /**
+     * Brings the index in line with a tube the store changed behind its back,
+     * reporting both where it was and where it is now.
+     */
+    private void refreshTube(int id) {
+        if (index.getFiledBounds(id, changedBounds) && listener != null) {
+            listener.areaChanged(changedBounds);
+        }
+        index.refresh(id);
+        if (!store.isRemoved(id) && listener != null) {
+            store.getBounds(id, changedBounds);
+            listener.areaChanged(changedBounds);
+        }
+    }
+}
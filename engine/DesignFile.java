@@ -0,0 +1,120 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reads and writes designs as plain text, one tube per line:
+ *
+ *   # Tube design v1
+ *   # x y length width thickness angle
+ *   100 200 200 50 5 0
+ *   250 200 200 50 5 90
+ *
+ * Values are separated by spaces or tabs, angles are in degrees, and lines
+ * starting with # are comments. Ids are given by line order, so the last
+ * tube is drawn on top. Removed tubes are not written.
+ */
+final class DesignFile {
+
+    static final String EXTENSION = ".tubes";
+
+    private static final String HEADER = "# Tube design v1";
+
+    private DesignFile() {
+    }
+
+    /**
+     * Parses a design into the store. Throws, naming the line, on anything
+     * that is not six numbers.
+     */
+    static void parse(CharSequence text, TubeStore out) throws IOException {
+        double[] values = new double[6];
+        int length = text.length(), lineNumber = 0;
+        for (int start = 0; start < length; ) {
+            int end = start;
+            while (end < length && text.charAt(end) != '\n') {
+                end++;
+            }
+            lineNumber++;
+            int count = 0;
+            for (int i = start; i < end; ) {
+                char c = text.charAt(i);
+                if (isSeparator(c)) {
+                    i++;
+                    continue;
+                }
+                if (c == '#' && count == 0) {
+                    break;
+                }
+                int tokenEnd = i;
+                while (tokenEnd < end && !isSeparator(text.charAt(tokenEnd))) {
+                    tokenEnd++;
+                }
+                if (count == values.length) {
+                    throw new IOException("line " + lineNumber + ": more than " + values.length + " values");
+                }
+                String token = text.subSequence(i, tokenEnd).toString();
+                try {
+                    values[count++] = Double.parseDouble(token);
+                } catch (NumberFormatException e) {
+                    throw new IOException("line " + lineNumber + ": not a number: " + token);
+                }
+                i = tokenEnd;
+            }
+            if (count != 0 && count != values.length) {
+                throw new IOException("line " + lineNumber + ": expected " + values.length
+                        + " values, found " + count);
+            }
+            if (count != 0) {
+                out.add(values[0], values[1], values[2], values[3], values[4], Math.toRadians(values[5]));
+            }
+            start = end + 1;
+        }
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == ' ' || c == '\t' || c == '\r';
+    }
+
+    /**
+     * Writes the tubes of the store that are not removed.
+     */
+    static void write(TubeStore store, Appendable out) throws IOException {
+        out.append(HEADER).append('\n');
+        out.append("# x y length width thickness angle\n");
+        for (int id = 0; id < store.size(); id++) {
+            if (!store.isRemoved(id)) {
+                out.append(String.format(Locale.ROOT, "%s %s %s %s %s %s\n",
+                        store.x(id), store.y(id), store.length(id), store.width(id),
+                        store.thickness(id), Math.toDegrees(store.angle(id))));
+            }
+        }
+    }
+
+    /**
+     * Returns what is wrong with the design, one message per problem, or an
+     * empty list if every tube can be built: finite values, a positive
+     * length and width, and a wall thinner than half the section.
+     */
+    static List<String> validate(TubeStore store) {
+        List<String> problems = new ArrayList<>();
+        for (int id = 0; id < store.size(); id++) {
+            if (store.isRemoved(id)) {
+                continue;
+            }
+            double length = store.length(id), width = store.width(id), thickness = store.thickness(id);
+            if (!Double.isFinite(store.x(id)) || !Double.isFinite(store.y(id))
+                    || !Double.isFinite(store.angle(id)) || !Double.isFinite(length)
+                    || !Double.isFinite(width) || !Double.isFinite(thickness)) {
+                problems.add("tube " + id + ": value is not finite");
+            } else if (length <= 0 || width <= 0) {
+                problems.add("tube " + id + ": length and width must be positive");
+            } else if (thickness <= 0 || thickness * 2 >= Math.min(length, width)) {
+                problems.add("tube " + id + ": wall thickness " + thickness
+                        + " does not fit a " + length + " x " + width + " tube");
+            }
+        }
+        return problems;
+    }
+}
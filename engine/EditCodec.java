@@ -0,0 +1,161 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs undo edits into a compact byte form for old history.
+ * Ids are varints. The first value of each before/after pair is stored
+ * as raw bits. The second is stored as the XOR with the first, with
+ * trailing zero bits dropped. A move of a few pixels then costs a few
+ * bytes instead of a full double. Decoding gives back exactly the same
+ * values.
+ */
+final class EditCodec {
+
+    private static final int MOVE = 1;
+    private static final int ROTATE = 2;
+    private static final int ADD = 3;
+    private static final int DELETE = 4;
+    private static final int GROUP = 5;
+
+    private EditCodec() {
+    }
+
+    /**
+     * Encodes edits, oldest first, into one block.
+     */
+    static byte[] encode(List<UndoJournal.Edit> edits) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(edits.size() * 12);
+        writeVarLong(out, edits.size());
+        for (UndoJournal.Edit edit : edits) {
+            writeEdit(out, edit);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a block written by encode, oldest edit first.
+     */
+    static List<UndoJournal.Edit> decode(byte[] block) {
+        ByteBuffer in = ByteBuffer.wrap(block);
+        int count = (int) readVarLong(in);
+        List<UndoJournal.Edit> edits = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            edits.add(readEdit(in));
+        }
+        return edits;
+    }
+
+    /**
+     * Returns the number of edits in a block without decoding them.
+     */
+    static int count(byte[] block) {
+        return (int) readVarLong(ByteBuffer.wrap(block));
+    }
+
+    private static void writeEdit(ByteArrayOutputStream out, UndoJournal.Edit edit) {
+        if (edit instanceof UndoJournal.Move) {
+            UndoJournal.Move move = (UndoJournal.Move) edit;
+            out.write(MOVE);
+            writeVarLong(out, move.id);
+            writePair(out, move.fromX, move.toX);
+            writePair(out, move.fromY, move.toY);
+        } else if (edit instanceof UndoJournal.Rotate) {
+            UndoJournal.Rotate rotate = (UndoJournal.Rotate) edit;
+            out.write(ROTATE);
+            writeVarLong(out, rotate.id);
+            writePair(out, rotate.from, rotate.to);
+        } else if (edit instanceof UndoJournal.Add) {
+            out.write(ADD);
+            writeVarLong(out, edit.tubeId());
+        } else if (edit instanceof UndoJournal.Delete) {
+            out.write(DELETE);
+            writeVarLong(out, edit.tubeId());
+        } else if (edit instanceof UndoJournal.Group) {
+            UndoJournal.Edit[] parts = ((UndoJournal.Group) edit).edits;
+            out.write(GROUP);
+            writeVarLong(out, parts.length);
+            for (UndoJournal.Edit part : parts) {
+                writeEdit(out, part);
+            }
+        } else {
+            throw new IllegalArgumentException("Cannot encode " + edit.getClass().getName());
+        }
+    }
+
+    private static UndoJournal.Edit readEdit(ByteBuffer in) {
+        int tag = in.get();
+        if (tag == GROUP) {
+            UndoJournal.Edit[] parts = new UndoJournal.Edit[(int) readVarLong(in)];
+            for (int i = 0; i < parts.length; i++) {
+                parts[i] = readEdit(in);
+            }
+            return new UndoJournal.Group(parts);
+        }
+        int id = (int) readVarLong(in);
+        switch (tag) {
+            case MOVE: {
+                double fromX = in.getDouble();
+                double toX = readXor(in, fromX);
+                double fromY = in.getDouble();
+                double toY = readXor(in, fromY);
+                return new UndoJournal.Move(id, fromX, fromY, toX, toY);
+            }
+            case ROTATE: {
+                double from = in.getDouble();
+                return new UndoJournal.Rotate(id, from, readXor(in, from));
+            }
+            case ADD:
+                return new UndoJournal.Add(id);
+            case DELETE:
+                return new UndoJournal.Delete(id);
+            default:
+                throw new IllegalStateException("Corrupt history block, tag " + tag);
+        }
+    }
+
+    private static void writePair(ByteArrayOutputStream out, double first, double second) {
+        long bits = Double.doubleToRawLongBits(first);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (bits >>> shift));
+        }
+        long xor = bits ^ Double.doubleToRawLongBits(second);
+        if (xor == 0) {
+            out.write(0);
+        } else {
+            int zeros = Long.numberOfTrailingZeros(xor);
+            out.write(zeros + 1);
+            writeVarLong(out, xor >>> zeros);
+        }
+    }
+
+    private static double readXor(ByteBuffer in, double first) {
+        int marker = in.get() & 0xff;
+        if (marker == 0) {
+            return first;
+        }
+        long xor = readVarLong(in) << (marker - 1);
+        return Double.longBitsToDouble(Double.doubleToRawLongBits(first) ^ xor);
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+}
@@ -0,0 +1,184 @@
+import java.util.Arrays;
+
+/**
+ * A TubeStore backed by primitive arrays on the Java heap.
+ * Tubes are grouped into chunks of CHUNK_TUBES, each chunk holding one
+ * array per field. Chunks are copy-on-write: a snapshot shares every chunk
+ * with the live store, and the live store copies a chunk only the first
+ * time it writes to it afterwards.
+ */
+class HeapTubeStore extends TubeStore {
+
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_TUBES = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_TUBES - 1;
+
+    /**
+     * The values of up to CHUNK_TUBES consecutive tubes.
+     * Only the store that owns a chunk may write to it.
+     */
+    private static final class Chunk {
+        final Object owner;
+        final double[] x, y;
+        final double[] length, width, thickness;
+        final double[] angle;
+        final double[] sin, cos;
+
+        Chunk(Object owner, int capacity) {
+            this.owner = owner;
+            x = new double[capacity];
+            y = new double[capacity];
+            length = new double[capacity];
+            width = new double[capacity];
+            thickness = new double[capacity];
+            angle = new double[capacity];
+            sin = new double[capacity];
+            cos = new double[capacity];
+        }
+
+        Chunk(Object owner, Chunk other, int capacity) {
+            this.owner = owner;
+            x = Arrays.copyOf(other.x, capacity);
+            y = Arrays.copyOf(other.y, capacity);
+            length = Arrays.copyOf(other.length, capacity);
+            width = Arrays.copyOf(other.width, capacity);
+            thickness = Arrays.copyOf(other.thickness, capacity);
+            angle = Arrays.copyOf(other.angle, capacity);
+            sin = Arrays.copyOf(other.sin, capacity);
+            cos = Arrays.copyOf(other.cos, capacity);
+        }
+    }
+
+    private Chunk[] chunks = new Chunk[0];
+    private boolean chunksShared = false; // The chunks array itself is shared with a snapshot
+    private Object owner = new Object();  // Replaced on every snapshot
+    private int size = 0;
+
+    public HeapTubeStore() {
+    }
+
+    /**
+     * Creates a store sized for a known number of tubes. Small stores get a
+     * single short chunk instead of a full one.
+     */
+    public HeapTubeStore(int capacity) {
+        if (capacity < CHUNK_TUBES) {
+            chunks = new Chunk[] {new Chunk(owner, Math.max(capacity, 1))};
+        }
+    }
+
+    private HeapTubeStore(HeapTubeStore source) {
+        this.chunks = source.chunks;
+        this.chunksShared = true;
+        this.size = source.size;
+    }
+
+    @Override
+    public int add(double x, double y, double length, double width, double thickness, double angle) {
+        checkWritable();
+        int id = size;
+        Chunk chunk = writableChunk(id);
+        int i = id & CHUNK_MASK;
+        size++;
+        chunk.x[i] = x;
+        chunk.y[i] = y;
+        chunk.length[i] = length;
+        chunk.width[i] = width;
+        chunk.thickness[i] = thickness;
+        chunk.angle[i] = angle;
+        chunk.sin[i] = Math.sin(angle);
+        chunk.cos[i] = Math.cos(angle);
+        return id;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override public double x(int id) { return chunks[id >>> CHUNK_SHIFT].x[id & CHUNK_MASK]; }
+    @Override public double y(int id) { return chunks[id >>> CHUNK_SHIFT].y[id & CHUNK_MASK]; }
+    @Override public double length(int id) { return chunks[id >>> CHUNK_SHIFT].length[id & CHUNK_MASK]; }
+    @Override public double width(int id) { return chunks[id >>> CHUNK_SHIFT].width[id & CHUNK_MASK]; }
+    @Override public double thickness(int id) { return chunks[id >>> CHUNK_SHIFT].thickness[id & CHUNK_MASK]; }
+    @Override public double angle(int id) { return chunks[id >>> CHUNK_SHIFT].angle[id & CHUNK_MASK]; }
+    @Override public double sin(int id) { return chunks[id >>> CHUNK_SHIFT].sin[id & CHUNK_MASK]; }
+    @Override public double cos(int id) { return chunks[id >>> CHUNK_SHIFT].cos[id & CHUNK_MASK]; }
+
+    @Override
+    public void setPosition(int id, double x, double y) {
+        checkWritable();
+        Chunk chunk = writableChunk(id);
+        chunk.x[id & CHUNK_MASK] = x;
+        chunk.y[id & CHUNK_MASK] = y;
+    }
+
+    @Override
+    public void setAngle(int id, double angle) {
+        checkWritable();
+        Chunk chunk = writableChunk(id);
+        chunk.angle[id & CHUNK_MASK] = angle;
+        chunk.sin[id & CHUNK_MASK] = Math.sin(angle);
+        chunk.cos[id & CHUNK_MASK] = Math.cos(angle);
+    }
+
+    @Override
+    public void setLength(int id, double length) {
+        checkWritable();
+        writableChunk(id).length[id & CHUNK_MASK] = length;
+    }
+
+    @Override
+    public void setWidth(int id, double width) {
+        checkWritable();
+        writableChunk(id).width[id & CHUNK_MASK] = width;
+    }
+
+    @Override
+    public void setThickness(int id, double thickness) {
+        checkWritable();
+        writableChunk(id).thickness[id & CHUNK_MASK] = thickness;
+    }
+
+    @Override
+    public TubeStore snapshot() {
+        HeapTubeStore snapshot = new HeapTubeStore(this);
+        snapshot.copySnapshotStateFrom(this);
+        // From now on every chunk we hold is shared and must be copied before writing
+        owner = new Object();
+        chunksShared = true;
+        return snapshot;
+    }
+
+    @Override
+    protected void truncate(int size) {
+        this.size = Math.min(this.size, size);
+    }
+
+    /**
+     * Returns the chunk holding an id, ready for writing: allocated, grown
+     * to fit, and owned by this store rather than shared with a snapshot.
+     */
+    private Chunk writableChunk(int id) {
+        if (chunksShared) {
+            chunks = chunks.clone();
+            chunksShared = false;
+        }
+        int c = id >>> CHUNK_SHIFT;
+        if (c == chunks.length) {
+            chunks = Arrays.copyOf(chunks, c + 1);
+            chunks[c] = new Chunk(owner, CHUNK_TUBES);
+        }
+        Chunk chunk = chunks[c];
+        int needed = (id & CHUNK_MASK) + 1;
+        if (chunk.owner != owner || chunk.x.length < needed) {
+            int capacity = chunk.x.length;
+            while (capacity < needed) {
+                capacity = Math.min(capacity * 2, CHUNK_TUBES);
+            }
+            chunk = new Chunk(owner, chunk, capacity);
+            chunks[c] = chunk;
+        }
+        return chunk;
+    }
+}
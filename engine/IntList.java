@@ -0,0 +1,59 @@
+import java.util.Arrays;
+
+/**
+ * A growable list of ints, so tube ids can be collected without boxing.
+ */
+class IntList {
+
+    private int[] values;
+    private int size = 0;
+
+    public IntList() {
+        this(8);
+    }
+
+    public IntList(int capacity) {
+        values = new int[Math.max(capacity, 1)];
+    }
+
+    public void add(int value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    public int get(int index) {
+        return values[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Removes the first occurrence of a value, keeping the order of the rest.
+     */
+    public boolean removeValue(int value) {
+        for (int i = 0; i < size; i++) {
+            if (values[i] == value) {
+                System.arraycopy(values, i + 1, values, i, size - i - 1);
+                size--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void sort() {
+        Arrays.sort(values, 0, size);
+    }
+}
@@ -0,0 +1,129 @@
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the joints of a design: every pair of tubes whose outlines touch
+ * or overlap. For each joint it works out the angle between the two tubes
+ * and where along each tube they meet, which is what a cut list needs to
+ * tell a mitre or coped end from a plain butt or a crossing.
+ *
+ * Candidates come from the spatial index, so a design of n tubes costs
+ * about n small queries. Each candidate pair is tested exactly with the
+ * separating axis test on the two rotated outer rectangles.
+ */
+final class JointAnalysis {
+
+    /**
+     * Where two tubes meet. The lower id is always first.
+     */
+    static final class Joint {
+        final int first, second;
+        final double angle;        // Between the axes, 0 to 90 degrees
+        final double x, y;         // Where the axes cross, or midway between parallel tubes
+        final double firstOffset;  // Position of (x, y) along each axis, from its centre
+        final double secondOffset;
+
+        Joint(int first, int second, double angle, double x, double y,
+              double firstOffset, double secondOffset) {
+            this.first = first;
+            this.second = second;
+            this.angle = angle;
+            this.x = x;
+            this.y = y;
+            this.firstOffset = firstOffset;
+            this.secondOffset = secondOffset;
+        }
+
+        /**
+         * Returns whether the joint is at an end of the given tube of this
+         * joint rather than along its side, judged against the other tube's
+         * width.
+         */
+        boolean isAtEnd(TubeStore store, int id) {
+            double offset = id == first ? firstOffset : secondOffset;
+            int other = id == first ? second : first;
+            return Math.abs(offset) >= store.length(id) / 2 - store.width(other);
+        }
+    }
+
+    // Axes closer to parallel than this, in radians, count as parallel
+    private static final double PARALLEL_EPSILON = 1e-9;
+
+    private JointAnalysis() {
+    }
+
+    /**
+     * Returns every joint of the tubes in the store, ordered by first id.
+     * Tubes within tolerance of each other count as touching. The index
+     * must be up to date with the store.
+     */
+    static List<Joint> find(TubeStore store, SpatialIndex index, double tolerance) {
+        List<Joint> joints = new ArrayList<>();
+        Rectangle2D area = new Rectangle2D.Double();
+        IntList candidates = new IntList();
+        for (int a = 0; a < store.size(); a++) {
+            if (store.isRemoved(a)) {
+                continue;
+            }
+            store.getBounds(a, area);
+            area.setRect(area.getX() - tolerance, area.getY() - tolerance,
+                    area.getWidth() + 2 * tolerance, area.getHeight() + 2 * tolerance);
+            index.query(area, candidates);
+            for (int i = 0; i < candidates.size(); i++) {
+                int b = candidates.get(i);
+                if (b > a && touches(store, a, b, tolerance)) {
+                    joints.add(joint(store, a, b));
+                }
+            }
+        }
+        return joints;
+    }
+
+    /**
+     * Separating axis test of the two outer rectangles: they are apart if
+     * their projections onto one of the four edge directions are.
+     */
+    static boolean touches(TubeStore store, int a, int b, double tolerance) {
+        double dx = store.x(b) - store.x(a), dy = store.y(b) - store.y(a);
+        return !separated(store, a, b, store.cos(a), store.sin(a), dx, dy, tolerance)
+                && !separated(store, a, b, -store.sin(a), store.cos(a), dx, dy, tolerance)
+                && !separated(store, a, b, store.cos(b), store.sin(b), dx, dy, tolerance)
+                && !separated(store, a, b, -store.sin(b), store.cos(b), dx, dy, tolerance);
+    }
+
+    private static boolean separated(TubeStore store, int a, int b, double nx, double ny,
+                                     double dx, double dy, double tolerance) {
+        return Math.abs(dx * nx + dy * ny)
+                > radius(store, a, nx, ny) + radius(store, b, nx, ny) + tolerance;
+    }
+
+    /**
+     * Half the extent of a tube's outer rectangle along the direction.
+     */
+    private static double radius(TubeStore store, int id, double nx, double ny) {
+        double cos = store.cos(id), sin = store.sin(id);
+        return store.length(id) / 2 * Math.abs(cos * nx + sin * ny)
+                + store.width(id) / 2 * Math.abs(-sin * nx + cos * ny);
+    }
+
+    private static Joint joint(TubeStore store, int a, int b) {
+        double ax = store.x(a), ay = store.y(a), aCos = store.cos(a), aSin = store.sin(a);
+        double bx = store.x(b), by = store.y(b), bCos = store.cos(b), bSin = store.sin(b);
+        double cross = aCos * bSin - aSin * bCos;
+        double angle = Math.toDegrees(Math.asin(Math.min(1, Math.abs(cross))));
+        double x, y;
+        if (Math.abs(cross) > PARALLEL_EPSILON) {
+            // Solve a + s * dirA = b + t * dirB for s
+            double s = ((bx - ax) * bSin - (by - ay) * bCos) / cross;
+            x = ax + s * aCos;
+            y = ay + s * aSin;
+        } else {
+            x = (ax + bx) / 2;
+            y = (ay + by) / 2;
+        }
+        double firstOffset = (x - ax) * aCos + (y - ay) * aSin;
+        double secondOffset = (x - bx) * bCos + (y - by) * bSin;
+        return new Joint(a, b, angle, x, y, firstOffset, secondOffset);
+    }
+}
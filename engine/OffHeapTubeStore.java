@@ -0,0 +1,168 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * A TubeStore that keeps its records in native memory, outside the Java heap.
+ * Multi-million-tube designs then cost the garbage collector nothing to scan.
+ *
+ * Each tube is a fixed 64-byte record of native-order doubles:
+ * x, y, length, width, thickness, angle, sin, cos. Records are packed into
+ * direct buffers of CHUNK_TUBES records each, so the store grows without
+ * copying and is not limited to a single 2 GB buffer. Like the heap store,
+ * chunks are copy-on-write and shared with snapshots.
+ *
+ * Direct memory is capped at the heap size by default, so large designs
+ * also need -XX:MaxDirectMemorySize.
+ */
+class OffHeapTubeStore extends TubeStore {
+
+    // Record layout, as byte offsets into a record
+    static final int X = 0;
+    static final int Y = 8;
+    static final int LENGTH = 16;
+    static final int WIDTH = 24;
+    static final int THICKNESS = 32;
+    static final int ANGLE = 40;
+    static final int SIN = 48;
+    static final int COS = 56;
+    static final int RECORD_BYTES = 64;
+
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_TUBES = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_TUBES - 1;
+
+    /**
+     * A direct buffer of CHUNK_TUBES records.
+     * Only the store that owns a chunk may write to it.
+     */
+    private static final class Chunk {
+        final Object owner;
+        final ByteBuffer buf;
+
+        Chunk(Object owner, ByteBuffer buf) {
+            this.owner = owner;
+            this.buf = buf;
+        }
+    }
+
+    private Chunk[] chunks = new Chunk[0];
+    private boolean chunksShared = false; // The chunks array itself is shared with a snapshot
+    private Object owner = new Object();  // Replaced on every snapshot
+    private int size = 0;
+
+    public OffHeapTubeStore() {
+    }
+
+    private OffHeapTubeStore(OffHeapTubeStore source) {
+        this.chunks = source.chunks;
+        this.chunksShared = true;
+        this.size = source.size;
+    }
+
+    @Override
+    public int add(double x, double y, double length, double width, double thickness, double angle) {
+        checkWritable();
+        int id = size;
+        ByteBuffer buf = writableChunk(id);
+        size++;
+        int base = (id & CHUNK_MASK) * RECORD_BYTES;
+        buf.putDouble(base + X, x);
+        buf.putDouble(base + Y, y);
+        buf.putDouble(base + LENGTH, length);
+        buf.putDouble(base + WIDTH, width);
+        buf.putDouble(base + THICKNESS, thickness);
+        buf.putDouble(base + ANGLE, angle);
+        buf.putDouble(base + SIN, Math.sin(angle));
+        buf.putDouble(base + COS, Math.cos(angle));
+        return id;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override public double x(int id) { return get(id, X); }
+    @Override public double y(int id) { return get(id, Y); }
+    @Override public double length(int id) { return get(id, LENGTH); }
+    @Override public double width(int id) { return get(id, WIDTH); }
+    @Override public double thickness(int id) { return get(id, THICKNESS); }
+    @Override public double angle(int id) { return get(id, ANGLE); }
+    @Override public double sin(int id) { return get(id, SIN); }
+    @Override public double cos(int id) { return get(id, COS); }
+
+    @Override
+    public void setPosition(int id, double x, double y) {
+        set(id, X, x);
+        set(id, Y, y);
+    }
+
+    @Override
+    public void setAngle(int id, double angle) {
+        set(id, ANGLE, angle);
+        set(id, SIN, Math.sin(angle));
+        set(id, COS, Math.cos(angle));
+    }
+
+    @Override public void setLength(int id, double length) { set(id, LENGTH, length); }
+    @Override public void setWidth(int id, double width) { set(id, WIDTH, width); }
+    @Override public void setThickness(int id, double thickness) { set(id, THICKNESS, thickness); }
+
+    @Override
+    public TubeStore snapshot() {
+        OffHeapTubeStore snapshot = new OffHeapTubeStore(this);
+        snapshot.copySnapshotStateFrom(this);
+        // From now on every chunk we hold is shared and must be copied before writing
+        owner = new Object();
+        chunksShared = true;
+        return snapshot;
+    }
+
+    @Override
+    protected void truncate(int size) {
+        this.size = Math.min(this.size, size);
+    }
+
+    /**
+     * Returns the number of native bytes reserved for records.
+     */
+    public long reservedBytes() {
+        return (long) chunks.length * CHUNK_TUBES * RECORD_BYTES;
+    }
+
+    private double get(int id, int field) {
+        return chunks[id >>> CHUNK_SHIFT].buf.getDouble((id & CHUNK_MASK) * RECORD_BYTES + field);
+    }
+
+    private void set(int id, int field, double value) {
+        checkWritable();
+        writableChunk(id).putDouble((id & CHUNK_MASK) * RECORD_BYTES + field, value);
+    }
+
+    /**
+     * Returns the buffer holding an id, ready for writing: allocated and
+     * owned by this store rather than shared with a snapshot.
+     */
+    private ByteBuffer writableChunk(int id) {
+        if (chunksShared) {
+            chunks = chunks.clone();
+            chunksShared = false;
+        }
+        int c = id >>> CHUNK_SHIFT;
+        if (c == chunks.length) {
+            chunks = Arrays.copyOf(chunks, c + 1);
+            chunks[c] = new Chunk(owner, allocateChunk());
+        } else if (chunks[c].owner != owner) {
+            ByteBuffer copy = allocateChunk();
+            copy.put(chunks[c].buf.duplicate().clear());
+            copy.clear();
+            chunks[c] = new Chunk(owner, copy);
+        }
+        return chunks[c].buf;
+    }
+
+    private static ByteBuffer allocateChunk() {
+        return ByteBuffer.allocateDirect(CHUNK_TUBES * RECORD_BYTES).order(ByteOrder.nativeOrder());
+    }
+}
@@ -0,0 +1,372 @@
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+
+/**
+ * A uniform grid over the rotated bounding boxes of the tubes in a store.
+ * Each tube id is registered in every cell its bounds overlap, so point,
+ * rectangle and nearest-neighbour queries only look at nearby tubes.
+ * Ids are the z-order, so the topmost tube still wins a pick.
+ *
+ * Cells are kept in an open-addressing map keyed by a primitive long, so
+ * queries look cells up without boxing and allocate nothing.
+ */
+class SpatialIndex {
+
+    private final TubeStore store;
+    private final double cellSize;
+    private final CellMap cells = new CellMap();
+    private final Rectangle2D scratch = new Rectangle2D.Double();
+
+    // Cell range each id is filed under, indexed by id
+    private int[] col0 = new int[0], row0 = new int[0], col1 = new int[0], row1 = new int[0];
+    private boolean[] indexed = new boolean[0];
+    private int[] stamps = new int[0]; // Last query that reported each id
+    private int queryStamp = 0;
+    private int count = 0;
+
+    // Range of occupied cells, used to bound the nearest-neighbour search
+    private int minCol = Integer.MAX_VALUE, minRow = Integer.MAX_VALUE;
+    private int maxCol = Integer.MIN_VALUE, maxRow = Integer.MIN_VALUE;
+
+    public SpatialIndex(TubeStore store, double cellSize) {
+        this.store = store;
+        this.cellSize = cellSize;
+    }
+
+    /**
+     * Adds a tube to the index.
+     */
+    public void insert(int id) {
+        ensureCapacity(id + 1);
+        store.getBounds(id, scratch);
+        col0[id] = col(scratch.getMinX());
+        row0[id] = col(scratch.getMinY());
+        col1[id] = col(scratch.getMaxX());
+        row1[id] = col(scratch.getMaxY());
+        indexed[id] = true;
+        count++;
+        addToCells(id);
+    }
+
+    /**
+     * Re-files a tube after it has moved or rotated.
+     * Does nothing if its bounds still cover the same cells.
+     */
+    public void update(int id) {
+        if (id >= indexed.length || !indexed[id]) {
+            return;
+        }
+        store.getBounds(id, scratch);
+        int newCol0 = col(scratch.getMinX()), newRow0 = col(scratch.getMinY());
+        int newCol1 = col(scratch.getMaxX()), newRow1 = col(scratch.getMaxY());
+        if (newCol0 == col0[id] && newRow0 == row0[id] && newCol1 == col1[id] && newRow1 == row1[id]) {
+            return;
+        }
+        removeFromCells(id);
+        col0[id] = newCol0;
+        row0[id] = newRow0;
+        col1[id] = newCol1;
+        row1[id] = newRow1;
+        addToCells(id);
+    }
+
+    public void remove(int id) {
+        if (id < indexed.length && indexed[id]) {
+            removeFromCells(id);
+            indexed[id] = false;
+            count--;
+        }
+    }
+
+    /**
+     * Brings one tube's entry in line with the store: inserts, updates or
+     * removes it depending on whether the tube is still there.
+     */
+    public void refresh(int id) {
+        boolean present = id < indexed.length && indexed[id];
+        if (store.isRemoved(id)) {
+            remove(id);
+        } else if (present) {
+            update(id);
+        } else {
+            insert(id);
+        }
+    }
+
+    /**
+     * Re-indexes every tube in the store from scratch.
+     */
+    public void rebuild() {
+        cells.clear();
+        Arrays.fill(indexed, false);
+        count = 0;
+        minCol = minRow = Integer.MAX_VALUE;
+        maxCol = maxRow = Integer.MIN_VALUE;
+        for (int id = 0; id < store.size(); id++) {
+            if (!store.isRemoved(id)) {
+                insert(id);
+            }
+        }
+    }
+
+    /**
+     * Returns the topmost tube whose wall is within tolerance of the point,
+     * or -1 if there is none.
+     */
+    public int topmostAt(double x, double y, double tolerance) {
+        int best = -1;
+        for (int col = col(x - tolerance); col <= col(x + tolerance); col++) {
+            for (int row = col(y - tolerance); row <= col(y + tolerance); row++) {
+                IntList cell = cells.get(key(col, row));
+                if (cell == null) {
+                    continue;
+                }
+                for (int i = 0; i < cell.size(); i++) {
+                    int id = cell.get(i);
+                    if (id > best && store.contains(id, x, y, tolerance)) {
+                        best = id;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Fills result with the ids of the tubes whose bounds intersect the
+     * rectangle, bottom to top.
+     */
+    public void query(Rectangle2D area, IntList result) {
+        result.clear();
+        int stamp = ++queryStamp;
+        for (int col = col(area.getMinX()); col <= col(area.getMaxX()); col++) {
+            for (int row = col(area.getMinY()); row <= col(area.getMaxY()); row++) {
+                IntList cell = cells.get(key(col, row));
+                if (cell == null) {
+                    continue;
+                }
+                for (int i = 0; i < cell.size(); i++) {
+                    int id = cell.get(i);
+                    if (stamps[id] == stamp) {
+                        continue;
+                    }
+                    stamps[id] = stamp;
+                    store.getBounds(id, scratch);
+                    if (scratch.intersects(area)) {
+                        result.add(id);
+                    }
+                }
+            }
+        }
+        result.sort();
+    }
+
+    /**
+     * Returns the tube whose centre is closest to the point, or -1 if no
+     * tube lies within maxDistance. Searches outwards ring by ring and stops
+     * once no unvisited cell can hold anything closer.
+     */
+    public int nearest(double x, double y, double maxDistance) {
+        if (count == 0) {
+            return -1;
+        }
+        int stamp = ++queryStamp;
+        int centerCol = col(x), centerRow = col(y);
+        int maxRing = Math.max(
+                Math.max(Math.abs(centerCol - minCol), Math.abs(maxCol - centerCol)),
+                Math.max(Math.abs(centerRow - minRow), Math.abs(maxRow - centerRow)));
+        maxRing = (int) Math.min(maxRing, Math.ceil(maxDistance / cellSize) + 1);
+
+        int best = -1;
+        double bestDistSq = maxDistance * maxDistance;
+        for (int ring = 0; ring <= maxRing; ring++) {
+            for (int row = centerRow - ring; row <= centerRow + ring; row++) {
+                // Only the outline of the ring, the inside was done already
+                boolean edgeRow = ring == 0 || Math.abs(row - centerRow) == ring;
+                int step = edgeRow ? 1 : 2 * ring;
+                for (int col = centerCol - ring; col <= centerCol + ring; col += step) {
+                    IntList cell = cells.get(key(col, row));
+                    if (cell == null) {
+                        continue;
+                    }
+                    for (int i = 0; i < cell.size(); i++) {
+                        int id = cell.get(i);
+                        if (stamps[id] == stamp) {
+                            continue;
+                        }
+                        stamps[id] = stamp;
+                        double dx = store.x(id) - x;
+                        double dy = store.y(id) - y;
+                        double distSq = dx * dx + dy * dy;
+                        if (distSq <= bestDistSq) {
+                            bestDistSq = distSq;
+                            best = id;
+                        }
+                    }
+                }
+            }
+            // Every cell beyond this ring is at least ring * cellSize away
+            double reach = ring * cellSize;
+            if (best >= 0 && bestDistSq <= reach * reach) {
+                break;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Sets out to the cells a tube is currently filed under, which covers
+     * where it was when last inserted or updated. Returns false, leaving out
+     * unchanged, if the tube is not in the index.
+     */
+    public boolean getFiledBounds(int id, Rectangle2D out) {
+        if (id >= indexed.length || !indexed[id]) {
+            return false;
+        }
+        out.setRect(col0[id] * cellSize, row0[id] * cellSize,
+                (col1[id] - col0[id] + 1) * cellSize, (row1[id] - row0[id] + 1) * cellSize);
+        return true;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    private void addToCells(int id) {
+        for (int col = col0[id]; col <= col1[id]; col++) {
+            for (int row = row0[id]; row <= row1[id]; row++) {
+                long key = key(col, row);
+                IntList cell = cells.get(key);
+                if (cell == null) {
+                    cell = new IntList(4);
+                    cells.put(key, cell);
+                }
+                cell.add(id);
+            }
+        }
+        minCol = Math.min(minCol, col0[id]);
+        minRow = Math.min(minRow, row0[id]);
+        maxCol = Math.max(maxCol, col1[id]);
+        maxRow = Math.max(maxRow, row1[id]);
+    }
+
+    private void removeFromCells(int id) {
+        for (int col = col0[id]; col <= col1[id]; col++) {
+            for (int row = row0[id]; row <= row1[id]; row++) {
+                long key = key(col, row);
+                IntList cell = cells.get(key);
+                if (cell != null) {
+                    cell.removeValue(id);
+                    if (cell.isEmpty()) {
+                        cells.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > indexed.length) {
+            int newCapacity = Math.max(capacity, indexed.length * 2);
+            col0 = Arrays.copyOf(col0, newCapacity);
+            row0 = Arrays.copyOf(row0, newCapacity);
+            col1 = Arrays.copyOf(col1, newCapacity);
+            row1 = Arrays.copyOf(row1, newCapacity);
+            indexed = Arrays.copyOf(indexed, newCapacity);
+            stamps = Arrays.copyOf(stamps, newCapacity);
+        }
+    }
+
+    private int col(double coordinate) {
+        return (int) Math.floor(coordinate / cellSize);
+    }
+
+    private static long key(int col, int row) {
+        return ((long) col << 32) | (row & 0xffffffffL);
+    }
+
+    /**
+     * Maps cell keys to their id lists with linear probing. Removal shifts
+     * later entries of the same run back, so there are no tombstones and
+     * cells a dragged tube passed through do not pile up.
+     */
+    private static final class CellMap {
+        private long[] keys = new long[64];
+        private IntList[] values = new IntList[64];
+        private int size = 0;
+
+        IntList get(long key) {
+            int mask = keys.length - 1;
+            for (int slot = slot(key, mask); values[slot] != null; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return values[slot];
+                }
+            }
+            return null;
+        }
+
+        void put(long key, IntList value) {
+            if (2 * (size + 1) > keys.length) {
+                grow();
+            }
+            int mask = keys.length - 1;
+            int slot = slot(key, mask);
+            while (values[slot] != null) {
+                if (keys[slot] == key) {
+                    values[slot] = value;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = value;
+            size++;
+        }
+
+        void remove(long key) {
+            int mask = keys.length - 1;
+            int slot = slot(key, mask);
+            while (values[slot] != null && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (values[slot] == null) {
+                return;
+            }
+            values[slot] = null;
+            size--;
+            // Move back any later entry that can no longer be reached past the gap
+            int gap = slot;
+            for (int next = (gap + 1) & mask; values[next] != null; next = (next + 1) & mask) {
+                int home = slot(keys[next], mask);
+                if (((next - home) & mask) >= ((next - gap) & mask)) {
+                    keys[gap] = keys[next];
+                    values[gap] = values[next];
+                    values[next] = null;
+                    gap = next;
+                }
+            }
+        }
+
+        void clear() {
+            Arrays.fill(values, null);
+            size = 0;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            IntList[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new IntList[oldValues.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != null) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int slot(long key, int mask) {
+            return (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+import java.awt.Point;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
+import java.awt.geom.Rectangle2D;
+
+/**
+ * The Model class for a single tube.
+ * A Tube is a lightweight view onto one id of a TubeStore. Tubes created
+ * on their own get a private one-tube store. The shapes are cached and only
+ * rebuilt after the tube's values actually change.
+ */
+class Tube {
+    private final TubeStore store;
+    private final int id;
+
+    // Cached geometry and the values it was built from
+    private Shape baseShape;
+    private Shape transformedShape;
+    private double shapeLength = Double.NaN, shapeWidth, shapeThickness;
+    private double shapeX, shapeY, shapeAngle;
+    private boolean transformDirty = true;
+    private final Rectangle2D bounds = new Rectangle2D.Double();
+
+    public Tube(double x, double y, double length, double width, double thickness) {
+        this.store = new HeapTubeStore(1);
+        this.id = store.add(x, y, length, width, thickness, 0);
+    }
+
+    public Tube(Tube other) {
+        this.store = new HeapTubeStore(1);
+        this.id = store.add(other.getX(), other.getY(), other.getLength(), other.getWidth(),
+                other.getThickness(), other.getRotationAngle());
+    }
+
+    /**
+     * Creates a view onto an existing tube. Use TubeStore.view instead.
+     */
+    Tube(TubeStore store, int id) {
+        this.store = store;
+        this.id = id;
+    }
+
+    public int getId() { return id; }
+    public double getX() { return store.x(id); }
+    public double getY() { return store.y(id); }
+    public double getLength() { return store.length(id); }
+    public double getWidth() { return store.width(id); }
+    public double getThickness() { return store.thickness(id); }
+    public double getRotationAngle() { return store.angle(id); }
+
+    public void setPosition(double x, double y) { store.setPosition(id, x, y); }
+    public void setRotationAngle(double rotationAngle) { store.setAngle(id, rotationAngle); }
+    public void setLength(double length) { store.setLength(id, length); }
+    public void setWidth(double width) { store.setWidth(id, width); }
+    public void setThickness(double thickness) { store.setThickness(id, thickness); }
+
+    /**
+     * Returns the hollow cross-section centred on the origin.
+     * The shape is cached, so callers must not modify it.
+     */
+    public Shape getBaseShape() {
+        double length = getLength(), width = getWidth(), thickness = getThickness();
+        if (length != shapeLength || width != shapeWidth || thickness != shapeThickness) {
+            Area outer = new Area(new Rectangle2D.Double(-length / 2, -width / 2, length, width));
+            double innerLength = length - (thickness * 2);
+            double innerWidth = width - (thickness * 2);
+
+            if (innerLength > 0 && innerWidth > 0) {
+                Area inner = new Area(new Rectangle2D.Double(
+                        -innerLength / 2, -innerWidth / 2, innerLength, innerWidth));
+                outer.subtract(inner);
+            }
+            baseShape = outer;
+            shapeLength = length;
+            shapeWidth = width;
+            shapeThickness = thickness;
+            transformDirty = true;
+        }
+        return baseShape;
+    }
+
+    /**
+     * Returns the shape in canvas coordinates.
+     * The shape is cached, so callers must not modify it.
+     */
+    public Shape getTransformedShape() {
+        boolean baseRebuilt = getLength() != shapeLength || getWidth() != shapeWidth
+                || getThickness() != shapeThickness;
+        double x = getX(), y = getY(), angle = getRotationAngle();
+        if (!baseRebuilt && !transformDirty && x == shapeX && y == shapeY && angle == shapeAngle) {
+            return transformedShape; // Cache hit: no event, no allocation
+        }
+        TubeEvents.ShapeBuild event = new TubeEvents.ShapeBuild();
+        event.begin();
+        Shape base = getBaseShape();
+        AffineTransform tx = new AffineTransform();
+        tx.translate(x, y);
+        tx.rotate(angle);
+        transformedShape = tx.createTransformedShape(base);
+        shapeX = x;
+        shapeY = y;
+        shapeAngle = angle;
+        transformDirty = false;
+        event.end();
+        if (event.shouldCommit()) {
+            event.tubeId = id;
+            event.baseRebuilt = baseRebuilt;
+            event.commit();
+        }
+        return transformedShape;
+    }
+
+    /**
+     * Returns the bounding box of the rotated tube.
+     * Computed from the corners directly, so no shape has to be built.
+     * The rectangle is reused, so callers must not modify or keep it.
+     */
+    public Rectangle2D getBounds2D() {
+        store.getBounds(id, bounds);
+        return bounds;
+    }
+
+    public boolean contains(Point p) {
+        return contains(p.getX(), p.getY(), 0);
+    }
+
+    /**
+     * Tests a point against the hollow tube without building any shapes.
+     * A positive tolerance grows the wall by that many units on both sides.
+     */
+    public boolean contains(double px, double py, double tolerance) {
+        return store.contains(id, px, py, tolerance);
+    }
+}
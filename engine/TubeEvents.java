@@ -0,0 +1,130 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder events for the interactive paths of the designer.
+ *
+ * They cost next to nothing unless a recording enables them. tubes.jfc, at
+ * the root of the project, enables them all with thresholds that keep only
+ * the slow ones:
+ *
+ *   java -XX:StartFlightRecording:settings=default,settings=tubes.jfc,filename=session.jfr Main
+ *
+ * Each event is begun before the work, ended after it, and its fields
+ * filled in only if shouldCommit says it will be kept. An event fired on
+ * every frame is only created while a recording enables it, so frames stay
+ * free of allocation.
+ */
+final class TubeEvents {
+
+    static final EventType PAINT = EventType.getEventType(Paint.class);
+
+    private TubeEvents() {
+    }
+
+    @Name("tubes.Paint")
+    @Label("Paint Frame")
+    @Category("Tube Designer")
+    @Description("One paintComponent call of the drawing canvas")
+    static final class Paint extends Event {
+        @Label("Tubes")
+        int tubeCount;
+
+        @Label("Quality")
+        String quality;
+
+        @Label("Tiled")
+        @Description("Whether the unselected tubes came from tiles rather than one layer")
+        boolean tiled;
+
+        @Label("Clip Pixels")
+        long clipPixels;
+    }
+
+    @Name("tubes.HitTest")
+    @Label("Hit Test")
+    @Category("Tube Designer")
+    @Description("Picking the tube under the mouse")
+    static final class HitTest extends Event {
+        @Label("Tubes")
+        int tubeCount;
+
+        @Label("Hit Tube")
+        @Description("Id of the tube picked, or -1")
+        int hitId;
+    }
+
+    @Name("tubes.ShapeBuild")
+    @Label("Shape Build")
+    @Category("Tube Designer")
+    @Description("Rebuilding the cached shape of a Tube")
+    static final class ShapeBuild extends Event {
+        @Label("Tube")
+        int tubeId;
+
+        @Label("Cross-Section Rebuilt")
+        @Description("Whether the base Area was rebuilt, not just transformed")
+        boolean baseRebuilt;
+    }
+
+    @Name("tubes.History")
+    @Label("History")
+    @Category("Tube Designer")
+    @Description("Recording an edit, or undoing or redoing one")
+    static final class History extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Tubes")
+        int tubeCount;
+
+        @Label("Bytes Recorded")
+        @Description("Change in the memory held by the history; negative when compacting frees some")
+        @DataAmount
+        long bytesRecorded;
+
+        @Label("History Bytes")
+        @DataAmount
+        long historyBytes;
+    }
+
+    @Name("tubes.Snapshot")
+    @Label("Snapshot")
+    @Category("Tube Designer")
+    @Description("Taking a read-only snapshot of the design")
+    static final class Snapshot extends Event {
+        @Label("Tubes")
+        int tubeCount;
+    }
+
+    @Name("tubes.AddTube")
+    @Label("Add Tube")
+    @Category("Tube Designer")
+    static final class AddTube extends Event {
+        @Label("Tube")
+        int tubeId;
+
+        @Label("Tubes")
+        int tubeCount;
+    }
+
+    @Name("tubes.AngleSnap")
+    @Label("Angle Snap")
+    @Category("Tube Designer")
+    @Description("Setting the selected tube to a preset angle")
+    static final class AngleSnap extends Event {
+        @Label("Tube")
+        int tubeId;
+
+        @Label("From Degrees")
+        double fromDegrees;
+
+        @Label("To Degrees")
+        double toDegrees;
+    }
+}
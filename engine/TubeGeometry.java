@@ -0,0 +1,91 @@
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+
+/**
+ * Closed-form geometry of a hollow rectangular tube.
+ * Works on plain numbers, so the model can answer hit tests, bounds and
+ * outlines straight from its arrays without building Area objects.
+ */
+final class TubeGeometry {
+
+    private TubeGeometry() {
+    }
+
+    /**
+     * Tests a point against the hollow tube.
+     * The point is rotated into the tube's local frame and checked against
+     * the outer rectangle minus the inner one. A positive tolerance grows the
+     * wall by that many units on both sides, so thin walls stay clickable.
+     */
+    static boolean contains(double px, double py, double tolerance,
+                            double x, double y, double length, double width, double thickness,
+                            double sin, double cos) {
+        double dx = px - x;
+        double dy = py - y;
+        double localX = Math.abs(dx * cos + dy * sin);
+        double localY = Math.abs(dy * cos - dx * sin);
+
+        double halfLength = length / 2;
+        double halfWidth = width / 2;
+        if (localX > halfLength + tolerance || localY > halfWidth + tolerance) {
+            return false; // Outside the outer rectangle
+        }
+
+        double innerHalfLength = halfLength - thickness;
+        double innerHalfWidth = halfWidth - thickness;
+        if (innerHalfLength <= 0 || innerHalfWidth <= 0) {
+            return true; // Solid bar, no hole
+        }
+        return localX >= innerHalfLength - tolerance || localY >= innerHalfWidth - tolerance;
+    }
+
+    /**
+     * Writes the axis-aligned bounding box of the rotated tube into out.
+     */
+    static void bounds(double x, double y, double length, double width,
+                       double sin, double cos, Rectangle2D out) {
+        double halfX = Math.abs(cos) * length / 2 + Math.abs(sin) * width / 2;
+        double halfY = Math.abs(sin) * length / 2 + Math.abs(cos) * width / 2;
+        out.setRect(x - halfX, y - halfY, halfX * 2, halfY * 2);
+    }
+
+    /**
+     * Appends the outer and inner rectangles of the tube to the path.
+     * The inner one runs the other way round, so the path fills as the
+     * hollow cross-section under either winding rule. Under the non-zero
+     * rule, outlines of many tubes can share one path and overlapping walls
+     * stay filled.
+     */
+    static void appendOutline(Path2D path, double x, double y, double length, double width,
+                              double thickness, double sin, double cos) {
+        appendRect(path, x, y, length / 2, width / 2, sin, cos);
+        double innerHalfLength = length / 2 - thickness;
+        double innerHalfWidth = width / 2 - thickness;
+        if (innerHalfLength > 0 && innerHalfWidth > 0) {
+            appendRect(path, x, y, innerHalfLength, -innerHalfWidth, sin, cos);
+        }
+    }
+
+    /**
+     * Appends only the outer rectangle of the tube to the path.
+     */
+    static void appendQuad(Path2D path, double x, double y, double length, double width,
+                           double sin, double cos) {
+        appendRect(path, x, y, length / 2, width / 2, sin, cos);
+    }
+
+    /**
+     * Appends a rotated rectangle. A negative halfWidth mirrors it, which
+     * reverses its direction.
+     */
+    private static void appendRect(Path2D path, double x, double y, double halfLength, double halfWidth,
+                                   double sin, double cos) {
+        double ax = cos * halfLength, ay = sin * halfLength; // Half of the long side
+        double bx = -sin * halfWidth, by = cos * halfWidth;  // Half of the short side
+        path.moveTo(x - ax - bx, y - ay - by);
+        path.lineTo(x + ax - bx, y + ay - by);
+        path.lineTo(x + ax + bx, y + ay + by);
+        path.lineTo(x - ax + bx, y - ay + by);
+        path.closePath();
+    }
+}
@@ -0,0 +1,161 @@
+import java.awt.geom.Rectangle2D;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Holds every tube of a design as plain numbers.
+ * A tube is identified by a stable int id, which is also its z-order:
+ * higher ids are drawn on top. Code that walks the whole design reads the
+ * values by id; a Tube is only a lightweight view onto one id.
+ * Deleting a tube only marks its id as removed, so its values survive for
+ * undo and ids never shift; code walking the store skips removed ids.
+ *
+ * HeapTubeStore keeps the values in parallel arrays. OffHeapTubeStore keeps
+ * them in native memory for very large designs; pick it by starting the
+ * application with -Dtubes.offHeap=true.
+ *
+ * Both share storage between a store and its snapshots, so snapshot() is
+ * cheap and the first write to a region afterwards copies only that region.
+ * A snapshot never changes, so other threads may read it while the UI keeps
+ * editing the live store.
+ */
+abstract class TubeStore {
+
+    // Views handed out so far, only for tubes the UI actually touched
+    private final Map<Integer, Tube> views = new HashMap<>();
+    private BitSet removed = new BitSet();
+    private boolean removedShared = false; // Copy before writing, a snapshot holds it
+    private boolean readOnly = false;
+
+    /**
+     * Creates an empty store of the kind selected by the tubes.offHeap property.
+     */
+    public static TubeStore create() {
+        return Boolean.getBoolean("tubes.offHeap") ? new OffHeapTubeStore() : new HeapTubeStore();
+    }
+
+    /**
+     * Appends a tube on top of the others and returns its id.
+     */
+    public abstract int add(double x, double y, double length, double width, double thickness, double angle);
+
+    /**
+     * Returns one past the highest id, including removed tubes.
+     */
+    public abstract int size();
+
+    public abstract double x(int id);
+    public abstract double y(int id);
+    public abstract double length(int id);
+    public abstract double width(int id);
+    public abstract double thickness(int id);
+    public abstract double angle(int id);
+    public abstract double sin(int id); // Derived from angle, kept for hit-testing
+    public abstract double cos(int id);
+
+    public abstract void setPosition(int id, double x, double y);
+    public abstract void setAngle(int id, double angle);
+    public abstract void setLength(int id, double length);
+    public abstract void setWidth(int id, double width);
+    public abstract void setThickness(int id, double thickness);
+
+    public boolean isRemoved(int id) {
+        return removed.get(id);
+    }
+
+    /**
+     * Marks a tube as deleted. Its id and values are kept for restore.
+     */
+    public void remove(int id) {
+        writableRemoved().set(id);
+    }
+
+    public void restore(int id) {
+        writableRemoved().clear(id);
+    }
+
+    /**
+     * Returns a read-only copy of the current contents, of the same kind.
+     * The copy shares storage with this store instead of duplicating it.
+     */
+    public abstract TubeStore snapshot();
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Drops every tube with an id of size or more.
+     */
+    protected abstract void truncate(int size);
+
+    /**
+     * Replaces the contents of this store with those of another one.
+     * Views of ids that no longer exist are dropped; the rest stay valid.
+     */
+    public void copyFrom(TubeStore other) {
+        checkWritable();
+        truncate(0);
+        for (int id = 0; id < other.size(); id++) {
+            add(other.x(id), other.y(id), other.length(id), other.width(id),
+                    other.thickness(id), other.angle(id));
+        }
+        copyBookkeepingFrom(other);
+    }
+
+    public boolean contains(int id, double px, double py, double tolerance) {
+        return TubeGeometry.contains(px, py, tolerance, x(id), y(id), length(id), width(id),
+                thickness(id), sin(id), cos(id));
+    }
+
+    public void getBounds(int id, Rectangle2D out) {
+        TubeGeometry.bounds(x(id), y(id), length(id), width(id), sin(id), cos(id), out);
+    }
+
+    /**
+     * Returns the shared view for a tube, creating it on first use.
+     */
+    public Tube view(int id) {
+        if (id < 0 || id >= size()) {
+            throw new IndexOutOfBoundsException("No tube with id " + id);
+        }
+        return views.computeIfAbsent(id, i -> new Tube(this, i));
+    }
+
+    /**
+     * Copies the removed marks of another store and drops views of ids
+     * that no longer exist. Called at the end of every copyFrom.
+     */
+    protected void copyBookkeepingFrom(TubeStore other) {
+        removed = (BitSet) other.removed.clone();
+        removedShared = false;
+        int size = size();
+        views.keySet().removeIf(id -> id >= size);
+    }
+
+    /**
+     * Makes this store a read-only snapshot sharing source's removed marks.
+     * Called by snapshot() on the new store.
+     */
+    protected void copySnapshotStateFrom(TubeStore source) {
+        removed = source.removed;
+        source.removedShared = true;
+        readOnly = true;
+    }
+
+    private BitSet writableRemoved() {
+        checkWritable();
+        if (removedShared) {
+            removed = (BitSet) removed.clone();
+            removedShared = false;
+        }
+        return removed;
+    }
+
+    protected void checkWritable() {
+        if (readOnly) {
+            throw new UnsupportedOperationException("Snapshots are read-only");
+        }
+    }
+}
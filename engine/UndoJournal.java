@@ -0,0 +1,432 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Undo and redo history as a journal of small edits.
+ * Each edit records only the fields of the one tube it changed, so recording,
+ * undoing and redoing cost the same no matter how large the design is.
+ * Edits are recorded after they have been applied to the store.
+ *
+ * The latest RECENT_EDITS edits are kept as objects. Older ones are packed
+ * into compact blocks by EditCodec and unpacked again only when undo reaches
+ * them. Once the estimated memory use exceeds the budget, the oldest history
+ * is dropped.
+ *
+ * Small repeated edits such as keyboard nudges can be recorded with
+ * recordCoalescing, which folds them into the previous entry while they
+ * keep arriving for the same tube within COALESCE_MILLIS.
+ */
+class UndoJournal {
+
+    /** Default memory budget, overridable with -Dtubes.undoBudget=bytes. */
+    static final long DEFAULT_BUDGET_BYTES = 16L << 20;
+
+    private static final int RECENT_EDITS = 256;
+    private static final int BLOCK_EDITS = 128;
+    private static final long BLOCK_OVERHEAD_BYTES = 32; // Array header and deque slot
+
+    /** How long after one coalescing edit the next may still merge into it. */
+    static final long COALESCE_MILLIS = 800;
+
+    /**
+     * One reversible change to a single tube.
+     */
+    interface Edit {
+        void apply(TubeStore store);
+
+        void revert(TubeStore store);
+
+        /**
+         * Returns the id of the tube this edit changes, or the first one for a group.
+         */
+        int tubeId();
+
+        /**
+         * Adds the ids of every tube this edit changes.
+         */
+        default void collectTubeIds(IntList out) {
+            out.add(tubeId());
+        }
+
+        /**
+         * Returns the approximate heap size of this edit as an object.
+         */
+        int estimatedBytes();
+
+        /**
+         * Returns one edit with the effect of this edit followed by next,
+         * or null if the two cannot be merged.
+         */
+        default Edit mergeWith(Edit next) {
+            return null;
+        }
+    }
+
+    private final Deque<Edit> undoStack = new ArrayDeque<>();
+    private final Deque<Edit> redoStack = new ArrayDeque<>();
+    private final Deque<byte[]> compacted = new ArrayDeque<>(); // Newest block first
+    private long undoBytes, redoBytes, compactedBytes;
+    private int compactedEdits;
+    private long budgetBytes;
+    private boolean topCoalescing = false; // The top entry may absorb the next edit
+    private long lastCoalescingMillis;
+
+    public UndoJournal() {
+        this(DEFAULT_BUDGET_BYTES);
+    }
+
+    public UndoJournal(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Adds an edit that has already been applied. Clears the redo history.
+     */
+    public void record(Edit edit) {
+        topCoalescing = false;
+        undoStack.push(edit);
+        undoBytes += edit.estimatedBytes();
+        redoStack.clear();
+        redoBytes = 0;
+        if (undoStack.size() > RECENT_EDITS) {
+            compactOldest();
+        }
+        enforceBudget();
+    }
+
+    /**
+     * Adds an applied edit, merging it into the latest entry if that was
+     * also recorded here, recently enough, and can absorb it.
+     */
+    public void recordCoalescing(Edit edit, long nowMillis) {
+        Edit top = undoStack.peek();
+        if (topCoalescing && top != null && nowMillis - lastCoalescingMillis <= COALESCE_MILLIS) {
+            Edit merged = top.mergeWith(edit);
+            if (merged != null) {
+                undoStack.pop();
+                undoStack.push(merged);
+                undoBytes += merged.estimatedBytes() - top.estimatedBytes();
+                redoStack.clear();
+                redoBytes = 0;
+                lastCoalescingMillis = nowMillis;
+                return;
+            }
+        }
+        record(edit);
+        topCoalescing = true;
+        lastCoalescingMillis = nowMillis;
+    }
+
+    /**
+     * Reverts the latest edit and returns it, or null if there is none.
+     */
+    public Edit undo(TubeStore store) {
+        topCoalescing = false;
+        if (undoStack.isEmpty() && !compacted.isEmpty()) {
+            expandNewestBlock();
+        }
+        Edit edit = undoStack.poll();
+        if (edit != null) {
+            edit.revert(store);
+            undoBytes -= edit.estimatedBytes();
+            redoStack.push(edit);
+            redoBytes += edit.estimatedBytes();
+        }
+        return edit;
+    }
+
+    /**
+     * Re-applies the latest undone edit and returns it, or null if there is none.
+     */
+    public Edit redo(TubeStore store) {
+        topCoalescing = false;
+        Edit edit = redoStack.poll();
+        if (edit != null) {
+            edit.apply(store);
+            redoBytes -= edit.estimatedBytes();
+            undoStack.push(edit);
+            undoBytes += edit.estimatedBytes();
+        }
+        return edit;
+    }
+
+    public boolean canUndo() {
+        return !undoStack.isEmpty() || !compacted.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !redoStack.isEmpty();
+    }
+
+    /**
+     * Returns the number of edits that can be undone.
+     */
+    public int size() {
+        return undoStack.size() + compactedEdits;
+    }
+
+    /**
+     * Returns the estimated memory held by the whole history.
+     */
+    public long memoryBytes() {
+        return undoBytes + redoBytes + compactedBytes;
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public void setBudgetBytes(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        enforceBudget();
+    }
+
+    /**
+     * Packs the oldest BLOCK_EDITS recent edits into one compact block.
+     */
+    private void compactOldest() {
+        List<Edit> oldest = new ArrayList<>(BLOCK_EDITS);
+        for (int i = 0; i < BLOCK_EDITS && !undoStack.isEmpty(); i++) {
+            Edit edit = undoStack.pollLast();
+            undoBytes -= edit.estimatedBytes();
+            oldest.add(edit);
+        }
+        byte[] block = EditCodec.encode(oldest);
+        compacted.push(block);
+        compactedBytes += block.length + BLOCK_OVERHEAD_BYTES;
+        compactedEdits += oldest.size();
+    }
+
+    private void expandNewestBlock() {
+        byte[] block = compacted.pop();
+        compactedBytes -= block.length + BLOCK_OVERHEAD_BYTES;
+        List<Edit> edits = EditCodec.decode(block);
+        compactedEdits -= edits.size();
+        for (Edit edit : edits) {
+            undoStack.push(edit);
+            undoBytes += edit.estimatedBytes();
+        }
+    }
+
+    /**
+     * Forgets the oldest history until the journal fits its budget.
+     * The latest edit is always kept.
+     */
+    private void enforceBudget() {
+        while (memoryBytes() > budgetBytes && !compacted.isEmpty()) {
+            byte[] block = compacted.pollLast();
+            compactedBytes -= block.length + BLOCK_OVERHEAD_BYTES;
+            compactedEdits -= EditCodec.count(block);
+        }
+        while (memoryBytes() > budgetBytes && undoStack.size() > 1) {
+            undoBytes -= undoStack.pollLast().estimatedBytes();
+        }
+    }
+
+    /**
+     * A tube moved from one centre to another.
+     */
+    static final class Move implements Edit {
+        static final int ESTIMATED_BYTES = 56; // Object plus deque slot
+
+        final int id;
+        final double fromX, fromY, toX, toY;
+
+        Move(int id, double fromX, double fromY, double toX, double toY) {
+            this.id = id;
+            this.fromX = fromX;
+            this.fromY = fromY;
+            this.toX = toX;
+            this.toY = toY;
+        }
+
+        @Override
+        public void apply(TubeStore store) {
+            store.setPosition(id, toX, toY);
+        }
+
+        @Override
+        public void revert(TubeStore store) {
+            store.setPosition(id, fromX, fromY);
+        }
+
+        @Override
+        public Edit mergeWith(Edit next) {
+            if (next instanceof Move && ((Move) next).id == id) {
+                Move move = (Move) next;
+                return new Move(id, fromX, fromY, move.toX, move.toY);
+            }
+            return null;
+        }
+
+        @Override
+        public int tubeId() {
+            return id;
+        }
+
+        @Override
+        public int estimatedBytes() {
+            return ESTIMATED_BYTES;
+        }
+    }
+
+    /**
+     * A tube turned from one angle to another.
+     */
+    static final class Rotate implements Edit {
+        static final int ESTIMATED_BYTES = 40; // Object plus deque slot
+
+        final int id;
+        final double from, to;
+
+        Rotate(int id, double from, double to) {
+            this.id = id;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public void apply(TubeStore store) {
+            store.setAngle(id, to);
+        }
+
+        @Override
+        public void revert(TubeStore store) {
+            store.setAngle(id, from);
+        }
+
+        @Override
+        public Edit mergeWith(Edit next) {
+            if (next instanceof Rotate && ((Rotate) next).id == id) {
+                return new Rotate(id, from, ((Rotate) next).to);
+            }
+            return null;
+        }
+
+        @Override
+        public int tubeId() {
+            return id;
+        }
+
+        @Override
+        public int estimatedBytes() {
+            return ESTIMATED_BYTES;
+        }
+    }
+
+    /**
+     * A tube was added. The store keeps its values while it is undone.
+     */
+    static final class Add implements Edit {
+        static final int ESTIMATED_BYTES = 24; // Object plus deque slot
+
+        final int id;
+
+        Add(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public void apply(TubeStore store) {
+            store.restore(id);
+        }
+
+        @Override
+        public void revert(TubeStore store) {
+            store.remove(id);
+        }
+
+        @Override
+        public int tubeId() {
+            return id;
+        }
+
+        @Override
+        public int estimatedBytes() {
+            return ESTIMATED_BYTES;
+        }
+    }
+
+    /**
+     * A tube was deleted. The store keeps its values, so undo just restores it.
+     */
+    static final class Delete implements Edit {
+        static final int ESTIMATED_BYTES = 24; // Object plus deque slot
+
+        final int id;
+
+        Delete(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public void apply(TubeStore store) {
+            store.remove(id);
+        }
+
+        @Override
+        public void revert(TubeStore store) {
+            store.restore(id);
+        }
+
+        @Override
+        public int tubeId() {
+            return id;
+        }
+
+        @Override
+        public int estimatedBytes() {
+            return ESTIMATED_BYTES;
+        }
+    }
+
+    /**
+     * Several edits made by one gesture, undone and redone together.
+     */
+    static final class Group implements Edit {
+        static final int ESTIMATED_BYTES = 40; // Object, array and deque slot
+
+        final Edit[] edits;
+
+        Group(Edit[] edits) {
+            this.edits = edits;
+        }
+
+        @Override
+        public void apply(TubeStore store) {
+            for (Edit edit : edits) {
+                edit.apply(store);
+            }
+        }
+
+        @Override
+        public void revert(TubeStore store) {
+            for (int i = edits.length - 1; i >= 0; i--) {
+                edits[i].revert(store);
+            }
+        }
+
+        @Override
+        public int tubeId() {
+            return edits[0].tubeId();
+        }
+
+        @Override
+        public void collectTubeIds(IntList out) {
+            for (Edit edit : edits) {
+                edit.collectTubeIds(out);
+            }
+        }
+
+        @Override
+        public int estimatedBytes() {
+            int bytes = ESTIMATED_BYTES;
+            for (Edit edit : edits) {
+                bytes += edit.estimatedBytes();
+            }
+            return bytes;
+        }
+    }
+}
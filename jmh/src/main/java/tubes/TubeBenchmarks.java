@@ -0,0 +1,228 @@
+package tubes;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Shape;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.swing.JComboBox;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Tube geometry, picking, editing with undo and painting, over scenes of
+ * random tubes at a constant density, so a larger scene is a larger world
+ * rather than a more crowded view.
+ *
+ *   java -jar jmh/target/benchmarks.jar -prof gc
+ *   java -jar jmh/target/benchmarks.jar pick -p tubes=1000,100000 -prof gc
+ *
+ * Each fork runs headless, with tiling off so a paint renders the whole
+ * layer on the calling thread instead of queueing tiles.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Dtubes.tileThreshold=2147483647"})
+public class TubeBenchmarks {
+
+    static final int VIEW_WIDTH = 1200;
+    static final int VIEW_HEIGHT = 800;
+    private static final long SEED = 42;
+
+    /**
+     * Adds random tubes to the store, about a thousand per view-sized area.
+     */
+    static void fill(TubeStore store, int tubes, Random random) {
+        double width = worldWidth(tubes), height = width * VIEW_HEIGHT / VIEW_WIDTH;
+        for (int i = 0; i < tubes; i++) {
+            store.add(random.nextDouble() * width, random.nextDouble() * height,
+                    60 + random.nextDouble() * 150, 20 + random.nextDouble() * 30,
+                    2 + random.nextDouble() * 6, random.nextDouble() * Math.PI);
+        }
+    }
+
+    static double worldWidth(int tubes) {
+        return VIEW_WIDTH * Math.sqrt(Math.max(tubes, 1) / 1000.0);
+    }
+
+    /**
+     * One tube on its own, and random points around it.
+     */
+    @State(Scope.Thread)
+    public static class SingleTube {
+        Tube tube;
+        final double[] points = new double[2048];
+        int count;
+
+        @Setup
+        public void setUp() {
+            tube = new Tube(0, 0, 200, 50, 5);
+            tube.setRotationAngle(0.5);
+            Random random = new Random(SEED);
+            for (int i = 0; i < points.length; i++) {
+                points[i] = random.nextDouble() * 240 - 120;
+            }
+        }
+    }
+
+    /**
+     * A scene of random tubes and its spatial index.
+     */
+    @State(Scope.Thread)
+    public static class Scene {
+        @Param({"10", "1000", "100000", "1000000"})
+        int tubes;
+
+        TubeStore store;
+        SpatialIndex index;
+        final double[] points = new double[2048];
+        int next;
+
+        @Setup
+        public void setUp() {
+            store = new HeapTubeStore();
+            Random random = new Random(SEED);
+            fill(store, tubes, random);
+            index = new SpatialIndex(store, 128);
+            index.rebuild();
+            double width = worldWidth(tubes);
+            for (int i = 0; i < points.length; i += 2) {
+                points[i] = random.nextDouble() * width;
+                points[i + 1] = random.nextDouble() * width * VIEW_HEIGHT / VIEW_WIDTH;
+            }
+        }
+    }
+
+    /**
+     * A canvas holding the scene, sized but not shown, with one tube added
+     * on top and selected, and an image to paint it into.
+     */
+    @State(Scope.Thread)
+    public static class Canvas {
+        @Param({"10", "1000", "100000", "1000000"})
+        int tubes;
+
+        DrawingCanvas canvas;
+        BufferedImage image;
+        Graphics2D g2d;
+        int count;
+
+        @Setup
+        public void setUp() {
+            canvas = new DrawingCanvas(new JComboBox<>(DrawingCanvas.ANGLE_OPTIONS));
+            canvas.setSize(VIEW_WIDTH, VIEW_HEIGHT);
+            TubeStore scene = new HeapTubeStore();
+            Random random = new Random(SEED);
+            fill(scene, tubes - 1, random);
+            canvas.loadTubes(scene);
+            canvas.addTube(new Tube(VIEW_WIDTH / 2.0, VIEW_HEIGHT / 2.0, 200, 50, 5)); // Selects it
+            image = new BufferedImage(VIEW_WIDTH, VIEW_HEIGHT, BufferedImage.TYPE_INT_RGB);
+            g2d = image.createGraphics();
+        }
+
+        @TearDown
+        public void tearDown() {
+            g2d.dispose();
+        }
+    }
+
+    /**
+     * A static layer over the scene, rendered at 1:1.
+     */
+    @State(Scope.Thread)
+    public static class Layer {
+        final Camera camera = new Camera();
+        final StaticLayer layer = new StaticLayer();
+        long version;
+    }
+
+    /**
+     * Tube.getBaseShape with the size changing on every call, so the Area
+     * is rebuilt each time.
+     */
+    @Benchmark
+    public Shape baseShape(SingleTube state) {
+        state.tube.setLength(200 + (++state.count & 1));
+        return state.tube.getBaseShape();
+    }
+
+    /**
+     * Tube.getTransformedShape with the tube moving on every call.
+     */
+    @Benchmark
+    public Shape transformedShape(SingleTube state) {
+        state.tube.setPosition(++state.count & 7, 0);
+        return state.tube.getTransformedShape();
+    }
+
+    /**
+     * Tube.getTransformedShape on an unchanged tube, served from the cache.
+     */
+    @Benchmark
+    public Shape transformedShapeCached(SingleTube state) {
+        return state.tube.getTransformedShape();
+    }
+
+    /**
+     * Tube.contains at random points around the tube.
+     */
+    @Benchmark
+    public boolean contains(SingleTube state) {
+        int next = state.count = (state.count + 2) & (state.points.length - 1);
+        return state.tube.contains(state.points[next], state.points[next + 1], 2);
+    }
+
+    /**
+     * Picking the topmost tube at random points of the scene, as a click does.
+     */
+    @Benchmark
+    public int pick(Scene scene) {
+        int next = scene.next = (scene.next + 2) & (scene.points.length - 1);
+        return scene.index.topmostAt(scene.points[next], scene.points[next + 1], 2);
+    }
+
+    /**
+     * Rendering the full static layer of the scene, as after an edit to an
+     * unselected tube.
+     */
+    @Benchmark
+    public BufferedImage layerRender(Scene scene, Layer layer) {
+        return layer.layer.get(null, VIEW_WIDTH, VIEW_HEIGHT, Color.WHITE, scene.store, scene.index,
+                layer.camera, ++layer.version, -1, RenderQuality.FULL);
+    }
+
+    /**
+     * Nudging the selected tube, which records an edit, then undoing it.
+     */
+    @Benchmark
+    public long editUndo(Canvas state) {
+        state.canvas.nudgeSelectedTube(1, 0);
+        state.canvas.undo();
+        return state.canvas.getHistoryBytes();
+    }
+
+    /**
+     * One frame of dragging: the selected tube moves and the whole canvas
+     * is painted into an image, from the cached layer plus that tube.
+     */
+    @Benchmark
+    public void dragFrame(Canvas state, Blackhole blackhole) {
+        state.canvas.nudgeSelectedTube((++state.count & 1) == 0 ? 1 : -1, 0);
+        state.canvas.paint(state.g2d);
+        blackhole.consume(state.image.getRGB(state.count % VIEW_WIDTH, 0));
+    }
+}
@@ -0,0 +1,109 @@
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+
+/**
+ * The view onto the design: a uniform zoom followed by a pan.
+ * A world point maps to the screen as world * scale + offset. The offset is
+ * kept in whole pixels, so panning moves cached tiles by whole pixels and
+ * they can be reused as they are.
+ */
+class Camera {
+
+    static final double MIN_SCALE = 0.01;
+    static final double MAX_SCALE = 50.0;
+
+    private double scale = 1.0;
+    private double offsetX = 0, offsetY = 0;
+    private long version = 0; // Bumped on every change
+    private final AffineTransform transform = new AffineTransform();
+
+    public double getScale() {
+        return scale;
+    }
+
+    public double getOffsetX() {
+        return offsetX;
+    }
+
+    public double getOffsetY() {
+        return offsetY;
+    }
+
+    /**
+     * Returns a number that changes whenever the view does.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the world-to-screen transform.
+     * The transform is reused, so callers must not modify or keep it.
+     */
+    public AffineTransform getTransform() {
+        transform.setTransform(scale, 0, 0, scale, offsetX, offsetY);
+        return transform;
+    }
+
+    public double toWorldX(double screenX) {
+        return (screenX - offsetX) / scale;
+    }
+
+    public double toWorldY(double screenY) {
+        return (screenY - offsetY) / scale;
+    }
+
+    /**
+     * Maps a world rectangle to the screen.
+     */
+    public void toScreen(Rectangle2D world, Rectangle2D out) {
+        out.setRect(world.getX() * scale + offsetX, world.getY() * scale + offsetY,
+                world.getWidth() * scale, world.getHeight() * scale);
+    }
+
+    /**
+     * Sets out to the part of the world visible in a view of the given size.
+     */
+    public void visibleWorld(int width, int height, Rectangle2D out) {
+        out.setRect(toWorldX(0), toWorldY(0), width / scale, height / scale);
+    }
+
+    /**
+     * Sets the zoom and pan outright, as when restoring a saved view.
+     */
+    public void setView(double scale, double offsetX, double offsetY) {
+        this.scale = Math.max(MIN_SCALE, Math.min(MAX_SCALE, scale));
+        this.offsetX = Math.round(offsetX);
+        this.offsetY = Math.round(offsetY);
+        version++;
+    }
+
+    /**
+     * Moves the view by whole pixels.
+     */
+    public void pan(int dx, int dy) {
+        if (dx != 0 || dy != 0) {
+            offsetX += dx;
+            offsetY += dy;
+            version++;
+        }
+    }
+
+    /**
+     * Zooms by a factor, keeping the world point under the given screen
+     * point where it is (up to rounding the offset to whole pixels).
+     * Returns whether the scale changed.
+     */
+    public boolean zoomAt(double screenX, double screenY, double factor) {
+        double newScale = Math.max(MIN_SCALE, Math.min(MAX_SCALE, scale * factor));
+        if (newScale == scale) {
+            return false;
+        }
+        double worldX = toWorldX(screenX), worldY = toWorldY(screenY);
+        scale = newScale;
+        offsetX = Math.round(screenX - worldX * scale);
+        offsetY = Math.round(screenY - worldY * scale);
+        version++;
+        return true;
+    }
+}
@@ -0,0 +1,783 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.awt.geom.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The View/Controller class.
+ * Now manages a persistent selection and reads from the angle JComboBox.
+ * The tubes, their index and the undo history live in a Design, which this
+ * class edits on behalf of the mouse and keyboard; the tubes are drawn
+ * straight from its store's arrays.
+ */
+class DrawingCanvas extends JPanel {
+
+    private final Design design = new Design();
+    private final TubeStore store = design.getStore();
+    private final SpatialIndex index = design.getIndex();
+    private final Camera camera = new Camera();
+
+    // Presets of the angle box; recorded input refers to them by index
+    static final String[] ANGLE_OPTIONS = {"Free", "0°", "30°", "45°", "90°", "135°"};
+
+    // The JComboBox from the main UI
+    private JComboBox<String> angleComboBox;
+
+    // How far outside a tube wall a click still selects it, in screen pixels
+    private static final double PICK_TOLERANCE = 2.0;
+    // Zoom factor per mouse-wheel notch
+    private static final double ZOOM_STEP = 1.1;
+    // Arrow-key nudge distances, plain and with SHIFT, in pixels
+    private static final double NUDGE_STEP = 1.0;
+    private static final double NUDGE_STEP_LARGE = 10.0;
+    // Margin around a moved tube's bounds that also gets repainted, for the
+    // stroke and antialiasing
+    private static final int DAMAGE_PADDING = 2;
+    // Scenes with at least this many tubes are drawn from tiles rather than
+    // one full-panel layer; set with -Dtubes.tileThreshold=count
+    private static final int TILE_THRESHOLD = Integer.getInteger("tubes.tileThreshold", 5000);
+    // How long the view must be left alone before a draft frame is redrawn
+    // at full quality; set with -Dtubes.refineDelay=milliseconds
+    private static final int REFINE_DELAY_MS = Integer.getInteger("tubes.refineDelay", 200);
+    // Frame rate drag and pan updates are capped at; -Dtubes.maxFps=rate
+    private static final int MAX_FPS = Math.max(1, Integer.getInteger("tubes.maxFps", 120));
+    // EDT time of every paint, at FINE; -Dtubes.paintLog=true prints it
+    private static final Logger PAINT_LOG = paintLogger();
+    // Draws the unselected tubes with the QuadRasterizer; -Dtubes.renderer=raster
+    private boolean fastRenderer = "raster".equals(System.getProperty("tubes.renderer"));
+
+    // State for mouse interactions
+    private int selectedId = -1; // Now a persistent selection, -1 for none
+    private Point2D.Double dragStartPoint = null; // In world coordinates
+    private double dragOriginX, dragOriginY, dragOriginAngle; // Where the drag started
+    private Point panPoint = null; // Last mouse position of a middle-button pan
+
+    // Rendering: the unselected tubes come from a cached layer, bumped by
+    // sceneVersion on every edit other than moving the selected tube, or for
+    // large scenes from tiles invalidated by the bounds of each change
+    private final TubePainter painter = new TubePainter();
+    private final StaticLayer staticLayer = new StaticLayer();
+    private final TileCache tileCache = new TileCache(this, camera);
+    private long sceneVersion = 0;
+    private final Rectangle2D selectedBounds = new Rectangle2D.Double();
+    private final Rectangle2D changedBounds = new Rectangle2D.Double();
+    private final Rectangle2D damageBefore = new Rectangle2D.Double();
+    private final Rectangle2D damageAfter = new Rectangle2D.Double();
+    private final Rectangle clipBounds = new Rectangle();
+
+    // While the user drags, pans or zooms, frames are drawn at draft quality;
+    // the timer refines the view once input has paused
+    private boolean interacting = false;
+    private final Timer refineTimer = new Timer(REFINE_DELAY_MS, e -> refine());
+
+    // Drag and pan input waiting for the next frame. Mouse events only
+    // record the latest target; the frame timer applies it once per tick
+    private boolean dragPending = false;
+    private double pendingDragX, pendingDragY; // In world coordinates
+    private boolean pendingRotate = false;
+    private int pendingPanX = 0, pendingPanY = 0;
+    private final Timer frameTimer = new Timer(1000 / MAX_FPS, e -> frame());
+
+    // Input being recorded for replay, or null. Volatile because a shutdown
+    // hook stops the recording while the EDT may still be writing to it
+    private volatile InputLog.Recorder recorder;
+
+    // Performance overlay, toggled with F3 or shown from the start with -Dtubes.hud=true
+    private final PerfHud hud = new PerfHud();
+    private boolean hudVisible = Boolean.getBoolean("tubes.hud");
+
+    public DrawingCanvas(JComboBox<String> angleComboBox) {
+        this.setBackground(Color.WHITE);
+        this.angleComboBox = angleComboBox; // Store the reference
+        angleComboBox.addActionListener(e -> applyAngleChoice());
+        this.setFocusable(true);
+        refineTimer.setRepeats(false);
+        staticLayer.setRasterizer(fastRenderer);
+        tileCache.setRasterizer(fastRenderer);
+        design.setListener(new Design.Listener() {
+            @Override
+            public void areaChanged(Rectangle2D bounds) {
+                tileCache.invalidate(bounds);
+            }
+
+            @Override
+            public void historyChanged(long oldBytes, long newBytes, long nanos) {
+                if (nanos >= 0) {
+                    hud.recordHistory(nanos);
+                }
+                firePropertyChange("historyBytes", oldBytes, newBytes);
+            }
+        });
+
+        MouseAdapter mouseAdapter = new MouseAdapter() {
+
+            @Override
+            public void mousePressed(MouseEvent e) {
+                record(InputLog.PRESS, e);
+                requestFocusInWindow(); // For the arrow keys
+
+                if (SwingUtilities.isMiddleMouseButton(e)) {
+                    panPoint = e.getPoint();
+                    return;
+                }
+
+                // Check if we clicked on an existing tube (topmost wins)
+                double x = camera.toWorldX(e.getX()), y = camera.toWorldY(e.getY());
+                TubeEvents.HitTest hitEvent = new TubeEvents.HitTest();
+                hitEvent.begin();
+                long hitStart = System.nanoTime();
+                int hit = index.topmostAt(x, y, PICK_TOLERANCE / camera.getScale());
+                hud.recordHitTest(System.nanoTime() - hitStart);
+                hitEvent.end();
+                if (hitEvent.shouldCommit()) {
+                    hitEvent.tubeCount = index.size();
+                    hitEvent.hitId = hit;
+                    hitEvent.commit();
+                }
+                select(hit);
+
+                if (selectedId >= 0) {
+                    // Clicked on a tube, prepare for dragging
+                    design.beginGesture();
+                    dragStartPoint = new Point2D.Double(x, y);
+                    dragOriginX = store.x(selectedId);
+                    dragOriginY = store.y(selectedId);
+                    dragOriginAngle = store.angle(selectedId);
+
+                    // Update the combo box to match the selected tube's angle
+                    // (This is advanced, we'll skip for now to avoid feedback loops)
+
+                } else {
+                    // Clicked on empty space, clear drag state
+                    dragStartPoint = null;
+                }
+                repaint(); // Show new selection
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                record(InputLog.DRAG, e);
+                interacted();
+                if (panPoint != null) {
+                    pendingPanX += e.getX() - panPoint.x;
+                    pendingPanY += e.getY() - panPoint.y;
+                    panPoint = e.getPoint();
+                    scheduleFrame();
+                    return;
+                }
+                if (selectedId >= 0 && dragStartPoint != null && design.isGestureActive()) {
+                    // Only the latest position counts; it is applied on the next frame
+                    dragPending = true;
+                    pendingDragX = camera.toWorldX(e.getX());
+                    pendingDragY = camera.toWorldY(e.getY());
+                    pendingRotate = e.isShiftDown();
+                    scheduleFrame();
+                }
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                record(InputLog.RELEASE, e);
+                frame(); // Input still waiting for a frame belongs to this gesture
+                if (panPoint != null) {
+                    panPoint = null;
+                    return;
+                }
+                // Record what the drag changed, if anything
+                design.commitGesture();
+
+                // Clear the *drag* state, but not the *selection*
+                dragStartPoint = null;
+            }
+
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent e) {
+                InputLog.Recorder current = recorder;
+                if (current != null) {
+                    try {
+                        current.wheel(e.getX(), e.getY(), e.getModifiersEx(), e.getPreciseWheelRotation());
+                    } catch (IOException ex) {
+                        recordingFailed(ex);
+                    }
+                }
+                zoomAt(e.getX(), e.getY(), Math.pow(ZOOM_STEP, -e.getPreciseWheelRotation()));
+            }
+        };
+
+        addMouseListener(mouseAdapter);
+        addMouseMotionListener(mouseAdapter);
+        addMouseWheelListener(mouseAdapter);
+
+        // Keyboard nudges; repeated presses merge into one undo entry
+        bindKey("LEFT", () -> nudgeSelectedTube(-NUDGE_STEP, 0));
+        bindKey("RIGHT", () -> nudgeSelectedTube(NUDGE_STEP, 0));
+        bindKey("UP", () -> nudgeSelectedTube(0, -NUDGE_STEP));
+        bindKey("DOWN", () -> nudgeSelectedTube(0, NUDGE_STEP));
+        bindKey("shift LEFT", () -> nudgeSelectedTube(-NUDGE_STEP_LARGE, 0));
+        bindKey("shift RIGHT", () -> nudgeSelectedTube(NUDGE_STEP_LARGE, 0));
+        bindKey("shift UP", () -> nudgeSelectedTube(0, -NUDGE_STEP_LARGE));
+        bindKey("shift DOWN", () -> nudgeSelectedTube(0, NUDGE_STEP_LARGE));
+        bindKey("ESCAPE", this::abortGesture);
+        bindKey("F3", () -> setHudVisible(!hudVisible));
+    }
+
+    private void bindKey(String keyStroke, Runnable action) {
+        getInputMap(WHEN_FOCUSED).put(KeyStroke.getKeyStroke(keyStroke), keyStroke);
+        getActionMap().put(keyStroke, new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                action.run();
+            }
+        });
+    }
+
+    /**
+     * Cancels the drag in progress and puts the tube back.
+     */
+    public void abortGesture() {
+        recordAction(InputLog.ABORT);
+        if (design.abortGesture()) {
+            dragPending = false;
+            sceneVersion++;
+            dragStartPoint = null;
+            repaint();
+        }
+    }
+
+    /**
+     * Adds a copy of the tube on top of the others and selects it.
+     */
+    public void addTube(Tube tube) {
+        InputLog.Recorder current = recorder;
+        if (current != null) {
+            try {
+                current.addTube(tube.getX(), tube.getY(), tube.getLength(), tube.getWidth(),
+                        tube.getThickness(), tube.getRotationAngle());
+            } catch (IOException e) {
+                recordingFailed(e);
+            }
+        }
+        int id = design.addTube(tube.getX(), tube.getY(), tube.getLength(), tube.getWidth(),
+                tube.getThickness(), tube.getRotationAngle());
+        sceneVersion++;
+        select(id); // Select the new tube
+        repaint();
+    }
+
+    /**
+     * Appends every tube of the source store to the design, as when opening
+     * a file. The tubes become part of the baseline rather than undoable
+     * edits, and the selection is cleared.
+     */
+    public void loadTubes(TubeStore source) {
+        design.load(source);
+        select(-1);
+        sceneVersion++;
+        tileCache.invalidateAll();
+        repaint();
+    }
+
+    /**
+     * Deletes the selected tube, if any.
+     */
+    public void deleteSelectedTube() {
+        recordAction(InputLog.DELETE);
+        if (selectedId >= 0) {
+            design.deleteTube(selectedId);
+            sceneVersion++;
+            selectedId = -1;
+            repaint();
+        }
+    }
+
+    /**
+     * Reverts the latest edit. The selection is kept unless its tube is gone.
+     */
+    public void undo() {
+        recordAction(InputLog.UNDO);
+        afterHistoryStep(design.undo());
+    }
+
+    /**
+     * Re-applies the latest undone edit.
+     */
+    public void redo() {
+        recordAction(InputLog.REDO);
+        afterHistoryStep(design.redo());
+    }
+
+    /**
+     * Returns the estimated memory held by the undo history.
+     * Listeners of the "historyBytes" property are told when it changes.
+     */
+    public long getHistoryBytes() {
+        return design.getHistoryBytes();
+    }
+
+    public long getHistoryBudget() {
+        return design.getHistoryBudget();
+    }
+
+    public void setHistoryBudget(long bytes) {
+        design.setHistoryBudget(bytes);
+    }
+
+    private void afterHistoryStep(UndoJournal.Edit edit) {
+        if (edit != null) {
+            sceneVersion++;
+            if (selectedId >= 0 && store.isRemoved(selectedId)) {
+                selectedId = -1;
+            }
+            repaint();
+        }
+    }
+
+    public boolean isFastRenderer() {
+        return fastRenderer;
+    }
+
+    /**
+     * Switches the unselected tubes between the QuadRasterizer and Java2D.
+     */
+    public void setFastRenderer(boolean fastRenderer) {
+        if (fastRenderer != this.fastRenderer) {
+            this.fastRenderer = fastRenderer;
+            staticLayer.setRasterizer(fastRenderer);
+            tileCache.setRasterizer(fastRenderer);
+            tileCache.invalidateAll();
+            repaint();
+        }
+    }
+
+    /**
+     * Zooms the view by a factor around a point on the screen.
+     */
+    public void zoomAt(double screenX, double screenY, double factor) {
+        if (camera.zoomAt(screenX, screenY, factor)) {
+            interacted();
+            repaint();
+        }
+    }
+
+    /**
+     * Moves the view by whole screen pixels.
+     */
+    public void panBy(int dx, int dy) {
+        camera.pan(dx, dy);
+        interacted();
+        repaint();
+    }
+
+    /**
+     * Starts writing every mouse event, angle preset choice, add, delete,
+     * undo, redo, nudge and abort to the stream, after the current design
+     * and view, for InputLog to read back.
+     */
+    public void startRecording(OutputStream out) throws IOException {
+        stopRecording();
+        recorder = new InputLog.Recorder(out, getWidth(), getHeight(), camera, store);
+    }
+
+    /**
+     * Finishes the recording, if there is one. Safe to call from any thread.
+     */
+    public void stopRecording() {
+        InputLog.Recorder current = recorder;
+        recorder = null;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                System.err.println("Input recording failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void record(byte type, MouseEvent e) {
+        InputLog.Recorder current = recorder;
+        if (current != null) {
+            try {
+                current.mouse(type, e.getX(), e.getY(), e.getModifiersEx(), e.getButton());
+            } catch (IOException ex) {
+                recordingFailed(ex);
+            }
+        }
+    }
+
+    private void recordAction(byte type) {
+        InputLog.Recorder current = recorder;
+        if (current != null) {
+            try {
+                current.action(type);
+            } catch (IOException e) {
+                recordingFailed(e);
+            }
+        }
+    }
+
+    private void recordingFailed(IOException e) {
+        System.err.println("Input recording stopped: " + e.getMessage());
+        stopRecording();
+    }
+
+    /**
+     * Sets the zoom and pan outright.
+     */
+    public void setView(double scale, double offsetX, double offsetY) {
+        camera.setView(scale, offsetX, offsetY);
+        repaint();
+    }
+
+    /**
+     * Applies waiting input now if no frame has run for a frame interval,
+     * so an isolated event is not delayed, and otherwise leaves it for the
+     * frame timer.
+     */
+    private void scheduleFrame() {
+        if (!frameTimer.isRunning()) {
+            frame();
+            frameTimer.start();
+        }
+    }
+
+    /**
+     * One frame: applies the latest drag target and the pan gathered since
+     * the last frame. The timer stops once a tick finds nothing to do.
+     */
+    private void frame() {
+        if (!dragPending && pendingPanX == 0 && pendingPanY == 0) {
+            frameTimer.stop();
+            return;
+        }
+        if (pendingPanX != 0 || pendingPanY != 0) {
+            panBy(pendingPanX, pendingPanY);
+            pendingPanX = pendingPanY = 0;
+        }
+        if (dragPending) {
+            dragPending = false;
+            if (selectedId >= 0 && dragStartPoint != null && design.isGestureActive()) {
+                applyDrag(pendingDragX, pendingDragY, pendingRotate);
+            }
+        }
+    }
+
+    /**
+     * Moves the selected tube so the point grabbed follows (x, y), or with
+     * rotate set turns it about its centre.
+     */
+    private void applyDrag(double x, double y, boolean rotate) {
+        store.getBounds(selectedId, damageBefore);
+
+        String angleMode = (String) angleComboBox.getSelectedItem();
+
+        // Check if SHIFT is held down for rotation
+        if (rotate) {
+            // --- ROTATION LOGIC ---
+            // Only allow free-rotate if ComboBox is set to "Free"
+            if ("Free".equals(angleMode)) {
+                double angle = Math.atan2(
+                        y - dragOriginY,
+                        x - dragOriginX
+                );
+                double startAngle = Math.atan2(
+                        dragStartPoint.y - dragOriginY,
+                        dragStartPoint.x - dragOriginX
+                );
+                design.rotateTube(selectedId, dragOriginAngle + (angle - startAngle));
+            }
+            // If angleMode is not "Free", do nothing (rotation is locked)
+
+        } else {
+            // --- TRANSLATION (DRAG) LOGIC ---
+            double dx = x - dragStartPoint.x;
+            double dy = y - dragStartPoint.y;
+            design.moveTube(selectedId, dragOriginX + dx, dragOriginY + dy);
+        }
+
+        repaintDamage(selectedId);
+    }
+
+    public boolean isHudVisible() {
+        return hudVisible;
+    }
+
+    /**
+     * Shows or hides the performance overlay.
+     */
+    public void setHudVisible(boolean visible) {
+        if (visible != hudVisible) {
+            hudVisible = visible;
+            repaint(hud.getBounds());
+        }
+    }
+
+    /**
+     * Switches to draft quality until input pauses for REFINE_DELAY_MS.
+     */
+    private void interacted() {
+        interacting = true;
+        refineTimer.restart();
+    }
+
+    private void refine() {
+        if (interacting) {
+            interacting = false;
+            repaint();
+        }
+    }
+
+    /**
+     * Returns the quality frames are currently drawn at.
+     */
+    public RenderQuality getRenderQuality() {
+        return interacting ? RenderQuality.DRAFT : RenderQuality.FULL;
+    }
+
+    /**
+     * Returns the world point at the centre of the view, where new tubes go.
+     */
+    public Point2D getViewCenter() {
+        return new Point2D.Double(camera.toWorldX(getWidth() / 2.0), camera.toWorldY(getHeight() / 2.0));
+    }
+
+    /**
+     * Changes the selection. The selected tube is drawn apart from the rest,
+     * so the tiles under both the old and the new one are invalidated.
+     */
+    private void select(int id) {
+        if (id != selectedId) {
+            invalidateTiles(selectedId);
+            invalidateTiles(id);
+            selectedId = id;
+        }
+    }
+
+    private void invalidateTiles(int id) {
+        if (id >= 0 && !store.isRemoved(id)) {
+            store.getBounds(id, changedBounds);
+            tileCache.invalidate(changedBounds);
+        }
+    }
+
+    /**
+     * Turns the selected tube to the preset chosen in the angle box, unless
+     * it is "Free". The choice is recorded even with nothing selected, so
+     * a replay leaves the box in the same state.
+     */
+    private void applyAngleChoice() {
+        InputLog.Recorder current = recorder;
+        if (current != null) {
+            try {
+                current.angle(angleComboBox.getSelectedIndex());
+            } catch (IOException e) {
+                recordingFailed(e);
+            }
+        }
+        String selectedAngle = (String) angleComboBox.getSelectedItem();
+        if (selectedId < 0 || selectedAngle == null || "Free".equals(selectedAngle)) {
+            return;
+        }
+        try {
+            // Parse the angle (e.g., "45°" -> 45.0)
+            double angleDeg = Double.parseDouble(selectedAngle.replace("°", ""));
+            // Set the tube's angle (records the edit and repaints)
+            setSelectedTubeAngle(Math.toRadians(angleDeg));
+        } catch (NumberFormatException nfe) {
+            // Not a number, just ignore
+        }
+    }
+
+    /**
+     * Snaps the selected tube to a fixed angle.
+     */
+    public void setSelectedTubeAngle(double rotationAngle) {
+        if (selectedId >= 0) {
+            double previous = store.angle(selectedId);
+            if (previous != rotationAngle) {
+                TubeEvents.AngleSnap event = new TubeEvents.AngleSnap();
+                event.begin();
+                store.getBounds(selectedId, damageBefore);
+                design.rotateTube(selectedId, rotationAngle);
+                repaintDamage(selectedId);
+                event.end();
+                if (event.shouldCommit()) {
+                    event.tubeId = selectedId;
+                    event.fromDegrees = Math.toDegrees(previous);
+                    event.toDegrees = Math.toDegrees(rotationAngle);
+                    event.commit();
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the selected tube by a small step, as the arrow keys do.
+     */
+    public void nudgeSelectedTube(double dx, double dy) {
+        InputLog.Recorder current = recorder;
+        if (current != null) {
+            try {
+                current.nudge(dx, dy);
+            } catch (IOException e) {
+                recordingFailed(e);
+            }
+        }
+        if (selectedId >= 0) {
+            store.getBounds(selectedId, damageBefore);
+            design.moveTube(selectedId, store.x(selectedId) + dx, store.y(selectedId) + dy);
+            repaintDamage(selectedId);
+        }
+    }
+
+    /**
+     * Repaints only the area a tube covered before (damageBefore) and after
+     * a change, instead of the whole canvas.
+     */
+    private void repaintDamage(int id) {
+        store.getBounds(id, damageAfter);
+        Rectangle2D.union(damageBefore, damageAfter, damageAfter);
+        camera.toScreen(damageAfter, damageAfter);
+        int x = (int) Math.floor(damageAfter.getMinX()) - DAMAGE_PADDING;
+        int y = (int) Math.floor(damageAfter.getMinY()) - DAMAGE_PADDING;
+        int right = (int) Math.ceil(damageAfter.getMaxX()) + DAMAGE_PADDING;
+        int bottom = (int) Math.ceil(damageAfter.getMaxY()) + DAMAGE_PADDING;
+        repaint(x, y, right - x, bottom - y);
+    }
+
+    /**
+     * Returns a view of the currently selected tube, or null.
+     * Made public to be accessible by the ComboBox listener.
+     */
+    public Tube getSelectedTube() {
+        return selectedId >= 0 ? store.view(selectedId) : null;
+    }
+
+    /**
+     * Returns the store holding the tubes, for read-only iteration.
+     */
+    public TubeStore getTubeStore() {
+        return store;
+    }
+
+    /**
+     * Returns the design being edited.
+     */
+    public Design getDesign() {
+        return design;
+    }
+
+    /**
+     * Returns a read-only snapshot of the design for background work such
+     * as export or analysis. Cheap to take, and safe to read from any thread
+     * while the user keeps editing.
+     */
+    public TubeStore snapshot() {
+        return design.snapshot();
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        TubeEvents.Paint event = TubeEvents.PAINT.isEnabled() ? new TubeEvents.Paint() : null;
+        if (event != null) {
+            event.begin();
+        }
+        long start = System.nanoTime();
+        long allocatedBefore = hudVisible ? PerfHud.allocatedBytes() : -1;
+        super.paintComponent(g);
+        Graphics2D g2d = (Graphics2D) g;
+        RenderQuality quality = getRenderQuality();
+        quality.apply(g2d, painter);
+
+        // Everything but the selected tube comes from the cached layer or
+        // tiles, which only change when the scene does
+        if (index.size() >= TILE_THRESHOLD) {
+            tileCache.paint(g2d, getWidth(), getHeight(), getBackground(), store, index, selectedId,
+                    quality);
+        } else {
+            BufferedImage layer = staticLayer.get(getGraphicsConfiguration(), getWidth(), getHeight(),
+                    getBackground(), store, index, camera, sceneVersion, selectedId, quality);
+            g2d.drawImage(layer, 0, 0, null);
+        }
+
+        // The selected tube is drawn on top of the rest, straight from the
+        // store, unless it is outside the clip
+        if (selectedId >= 0) {
+            Rectangle clip = clipBounds(g2d);
+            store.getBounds(selectedId, selectedBounds);
+            camera.toScreen(selectedBounds, selectedBounds);
+            if (selectedBounds.intersects(clip.x - DAMAGE_PADDING, clip.y - DAMAGE_PADDING,
+                    clip.width + 2 * DAMAGE_PADDING, clip.height + 2 * DAMAGE_PADDING)) {
+                AffineTransform screen = g2d.getTransform();
+                g2d.transform(camera.getTransform());
+                painter.paintTube(g2d, store, selectedId, TubePainter.SELECTED_COLOR,
+                        TubePainter.pixelScale(g2d));
+                g2d.setTransform(screen);
+            }
+        }
+
+        long nanos = System.nanoTime() - start;
+        if (event != null) {
+            event.end();
+        }
+        if (event != null && event.shouldCommit()) {
+            Rectangle clip = clipBounds(g2d);
+            event.tubeCount = index.size();
+            event.quality = quality.getName();
+            event.tiled = index.size() >= TILE_THRESHOLD;
+            event.clipPixels = (long) clip.width * clip.height;
+            event.commit();
+        }
+        if (hudVisible) {
+            paintHud(g2d, start, nanos, allocatedBefore);
+        }
+        if (PAINT_LOG.isLoggable(Level.FINE)) {
+            PAINT_LOG.log(Level.FINE, "paint {0} {1} ms", new Object[] {quality, nanos / 1e6});
+        }
+    }
+
+    /**
+     * Records the frame just painted and draws the HUD over it. A paint
+     * that does not reach the HUD asks for the HUD's own area to be painted
+     * again, and that paint is not counted as a frame.
+     */
+    private void paintHud(Graphics2D g2d, long start, long nanos, long allocatedBefore) {
+        Rectangle clip = clipBounds(g2d);
+        Rectangle hudBounds = hud.getBounds();
+        if (!hudBounds.contains(clip)) {
+            long allocatedAfter = PerfHud.allocatedBytes();
+            hud.recordFrame(start, nanos, allocatedBefore >= 0 && allocatedAfter >= 0
+                    ? allocatedAfter - allocatedBefore : -1);
+        }
+        if (!clip.contains(hudBounds)) {
+            repaint(hudBounds);
+        }
+        hud.paint(g2d, index.size());
+    }
+
+    /**
+     * Returns the clip bounds in a reused rectangle, or the whole canvas if
+     * there is no clip. Graphics.getClipBounds() allocates on every call.
+     */
+    private Rectangle clipBounds(Graphics2D g2d) {
+        clipBounds.setBounds(0, 0, getWidth(), getHeight());
+        return g2d.getClipBounds(clipBounds);
+    }
+
+    private static Logger paintLogger() {
+        Logger logger = Logger.getLogger("tubes.paint");
+        if (Boolean.getBoolean("tubes.paintLog")) {
+            ConsoleHandler handler = new ConsoleHandler();
+            handler.setLevel(Level.FINE);
+            logger.addHandler(handler);
+            logger.setLevel(Level.FINE);
+            logger.setUseParentHandlers(false);
+        }
+        return logger;
+    }
+}
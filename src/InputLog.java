@@ -0,0 +1,294 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A recorded input session: the design and view it started from, then every
+ * mouse press, drag, release, wheel turn, angle preset choice, button
+ * (add, delete, undo, redo) and key (arrow nudge, Esc) with its time, so
+ * the session can be replayed against another build.
+ *
+ * The binary layout is a header (magic, version, view size, camera scale
+ * and offset, and every tube as six doubles) followed by one record per
+ * event until the end of the stream: a type byte, the time since the
+ * previous record in microseconds, then the type's fields. Times, positions
+ * and modifiers are variable-length integers, so a drag record usually
+ * takes six or seven bytes. Version 1 logs, which had only the mouse and
+ * angle records, are still read.
+ */
+final class InputLog {
+
+    static final byte PRESS = 1;
+    static final byte DRAG = 2;
+    static final byte RELEASE = 3;
+    static final byte WHEEL = 4;
+    static final byte ANGLE = 5; // Angle preset chosen, by index in the combo box
+    static final byte ADD_TUBE = 6; // The tube as added, not the view it was added in
+    static final byte DELETE = 7;
+    static final byte UNDO = 8;
+    static final byte REDO = 9;
+    static final byte NUDGE = 10;
+    static final byte ABORT = 11; // Esc, cancelling the drag in progress
+
+    private static final int MAGIC = 0x54554245; // "TUBE"
+    private static final int VERSION = 2;
+
+    /**
+     * One recorded event. Only the fields of its type are set.
+     */
+    static final class Entry {
+        byte type;
+        long timeNanos; // Since the start of the recording
+        int x, y;
+        int modifiers;  // MouseEvent extended modifiers
+        int button;
+        double wheelRotation;
+        int angleIndex;
+        double[] tube;  // x, y, length, width, thickness, angle of an added tube
+        double dx, dy;  // Nudge, in world units
+    }
+
+    final int viewWidth, viewHeight;
+    final double scale, offsetX, offsetY;
+    final TubeStore scene;
+    final List<Entry> entries;
+
+    private InputLog(int viewWidth, int viewHeight, double scale, double offsetX, double offsetY,
+                     TubeStore scene, List<Entry> entries) {
+        this.viewWidth = viewWidth;
+        this.viewHeight = viewHeight;
+        this.scale = scale;
+        this.offsetX = offsetX;
+        this.offsetY = offsetY;
+        this.scene = scene;
+        this.entries = entries;
+    }
+
+    /**
+     * Reads a whole log. A record cut off at the end, as left by a crash,
+     * is dropped.
+     */
+    static InputLog read(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not an input log");
+        }
+        int version = in.readUnsignedShort();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported input log version " + version);
+        }
+        int viewWidth = in.readInt(), viewHeight = in.readInt();
+        double scale = in.readDouble(), offsetX = in.readDouble(), offsetY = in.readDouble();
+        int count = in.readInt();
+        TubeStore scene = new HeapTubeStore(Math.max(count, 1));
+        for (int i = 0; i < count; i++) {
+            scene.add(in.readDouble(), in.readDouble(), in.readDouble(),
+                    in.readDouble(), in.readDouble(), in.readDouble());
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        long time = 0;
+        while (true) {
+            int type = in.read();
+            if (type < 0) {
+                break;
+            }
+            try {
+                Entry entry = new Entry();
+                entry.type = (byte) type;
+                time += readVarLong(in) * 1000;
+                entry.timeNanos = time;
+                switch (entry.type) {
+                    case PRESS:
+                    case DRAG:
+                    case RELEASE:
+                        entry.x = readSignedVarInt(in);
+                        entry.y = readSignedVarInt(in);
+                        entry.modifiers = (int) readVarLong(in);
+                        entry.button = in.readUnsignedByte();
+                        break;
+                    case WHEEL:
+                        entry.x = readSignedVarInt(in);
+                        entry.y = readSignedVarInt(in);
+                        entry.modifiers = (int) readVarLong(in);
+                        entry.wheelRotation = in.readFloat();
+                        break;
+                    case ANGLE:
+                        entry.angleIndex = in.readUnsignedByte();
+                        break;
+                    case ADD_TUBE:
+                        entry.tube = new double[6];
+                        for (int i = 0; i < entry.tube.length; i++) {
+                            entry.tube[i] = in.readDouble();
+                        }
+                        break;
+                    case NUDGE:
+                        entry.dx = in.readFloat();
+                        entry.dy = in.readFloat();
+                        break;
+                    case DELETE:
+                    case UNDO:
+                    case REDO:
+                    case ABORT:
+                        break;
+                    default:
+                        throw new IOException("Unknown input record type " + type);
+                }
+                entries.add(entry);
+            } catch (EOFException e) {
+                break; // Truncated last record
+            }
+        }
+        return new InputLog(viewWidth, viewHeight, scale, offsetX, offsetY, scene, entries);
+    }
+
+    /**
+     * Writes a log as events happen. Methods are synchronized so that a
+     * shutdown hook can close it while the EDT is still recording.
+     */
+    static final class Recorder implements Closeable {
+        private final DataOutputStream out;
+        private final long startNanos = System.nanoTime();
+        private long lastMicros = 0;
+        private boolean closed = false;
+
+        /**
+         * Starts a log with the header for the given view and design.
+         */
+        Recorder(OutputStream stream, int viewWidth, int viewHeight, Camera camera,
+                 TubeStore design) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(viewWidth);
+            out.writeInt(viewHeight);
+            out.writeDouble(camera.getScale());
+            out.writeDouble(camera.getOffsetX());
+            out.writeDouble(camera.getOffsetY());
+            int count = 0;
+            for (int id = 0; id < design.size(); id++) {
+                if (!design.isRemoved(id)) {
+                    count++;
+                }
+            }
+            out.writeInt(count);
+            for (int id = 0; id < design.size(); id++) {
+                if (!design.isRemoved(id)) {
+                    out.writeDouble(design.x(id));
+                    out.writeDouble(design.y(id));
+                    out.writeDouble(design.length(id));
+                    out.writeDouble(design.width(id));
+                    out.writeDouble(design.thickness(id));
+                    out.writeDouble(design.angle(id));
+                }
+            }
+        }
+
+        synchronized void mouse(byte type, int x, int y, int modifiers, int button) throws IOException {
+            if (start(type)) {
+                writeSignedVarInt(out, x);
+                writeSignedVarInt(out, y);
+                writeVarLong(out, modifiers);
+                out.writeByte(button);
+            }
+        }
+
+        synchronized void wheel(int x, int y, int modifiers, double rotation) throws IOException {
+            if (start(WHEEL)) {
+                writeSignedVarInt(out, x);
+                writeSignedVarInt(out, y);
+                writeVarLong(out, modifiers);
+                out.writeFloat((float) rotation);
+            }
+        }
+
+        synchronized void angle(int index) throws IOException {
+            if (start(ANGLE)) {
+                out.writeByte(index);
+            }
+        }
+
+        synchronized void addTube(double x, double y, double length, double width,
+                                  double thickness, double angle) throws IOException {
+            if (start(ADD_TUBE)) {
+                out.writeDouble(x);
+                out.writeDouble(y);
+                out.writeDouble(length);
+                out.writeDouble(width);
+                out.writeDouble(thickness);
+                out.writeDouble(angle);
+            }
+        }
+
+        synchronized void nudge(double dx, double dy) throws IOException {
+            if (start(NUDGE)) {
+                out.writeFloat((float) dx);
+                out.writeFloat((float) dy);
+            }
+        }
+
+        /**
+         * Records an event that has no fields: DELETE, UNDO, REDO or ABORT.
+         */
+        synchronized void action(byte type) throws IOException {
+            start(type);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                out.close();
+            }
+        }
+
+        private boolean start(byte type) throws IOException {
+            if (closed) {
+                return false;
+            }
+            long micros = (System.nanoTime() - startNanos) / 1000;
+            out.writeByte(type);
+            writeVarLong(out, micros - lastMicros);
+            lastMicros = micros;
+            return true;
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable-length integer");
+    }
+
+    // Zig-zag, so small negative positions stay short too
+    private static void writeSignedVarInt(DataOutputStream out, int value) throws IOException {
+        writeVarLong(out, ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+    }
+
+    private static int readSignedVarInt(DataInputStream in) throws IOException {
+        int value = (int) readVarLong(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,222 @@
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * A small overlay with rolling performance figures: frame rate, paint time
+ * percentiles, the last hit test and history operation, the tube count and
+ * the bytes allocated per frame.
+ *
+ * Samples go into fixed rings and the text is built in a reused char array,
+ * so recording and drawing allocate nothing once the HUD is showing.
+ * Allocation is read from the JVM's per-thread counter where it offers one.
+ */
+class PerfHud {
+
+    private static final int SAMPLES = 120; // Frames kept for the figures
+    private static final int LINES = 6;
+    private static final int LINE_HEIGHT = 14;
+    private static final int MARGIN = 6;
+    private static final int WIDTH = 230;
+    // Opaque: a translucent fill allocates on every call in the software loops
+    private static final Color PANEL_COLOR = new Color(40, 40, 40);
+    private static final Font FONT = new Font(Font.MONOSPACED, Font.PLAIN, 11);
+
+    private static final com.sun.management.ThreadMXBean THREADS = allocationCounter();
+
+    private final long[] frameStarts = new long[SAMPLES];
+    private final long[] paintNanos = new long[SAMPLES];
+    private final long[] allocatedBytes = new long[SAMPLES];
+    private final long[] sorted = new long[SAMPLES];
+    private int frames = 0; // Total recorded, the ring index is frames % SAMPLES
+    private long hitTestNanos = -1;
+    private long historyNanos = -1;
+    private final char[] text = new char[64];
+    private int length;
+    private final Rectangle bounds = new Rectangle(MARGIN, MARGIN, WIDTH, LINES * LINE_HEIGHT + MARGIN);
+
+    /**
+     * Returns the bytes the current thread has allocated so far, or -1 if
+     * the JVM does not count them.
+     */
+    public static long allocatedBytes() {
+        return THREADS != null ? THREADS.getThreadAllocatedBytes(Thread.currentThread().threadId()) : -1;
+    }
+
+    /**
+     * Records one frame: when it started, how long it took and how many
+     * bytes it allocated (negative if unknown).
+     */
+    public void recordFrame(long startNanos, long nanos, long bytes) {
+        int slot = frames % SAMPLES;
+        frameStarts[slot] = startNanos;
+        paintNanos[slot] = nanos;
+        allocatedBytes[slot] = bytes;
+        frames++;
+    }
+
+    public void recordHitTest(long nanos) {
+        hitTestNanos = nanos;
+    }
+
+    /**
+     * Records the time of the latest history operation: recording an edit,
+     * undo or redo.
+     */
+    public void recordHistory(long nanos) {
+        historyNanos = nanos;
+    }
+
+    /**
+     * Returns the screen area the HUD covers.
+     */
+    public Rectangle getBounds() {
+        return bounds;
+    }
+
+    /**
+     * Draws the HUD in the top-left corner.
+     */
+    public void paint(Graphics2D g2d, int tubeCount) {
+        g2d.setColor(PANEL_COLOR);
+        g2d.fillRect(bounds.x, bounds.y, bounds.width, bounds.height);
+        g2d.setColor(Color.WHITE);
+        g2d.setFont(FONT);
+        int count = Math.min(frames, SAMPLES);
+        int x = bounds.x + MARGIN, y = bounds.y + LINE_HEIGHT;
+
+        start("fps   ");
+        if (count > 1) {
+            long newest = frameStarts[(frames - 1) % SAMPLES];
+            long oldest = frameStarts[(frames - count) % SAMPLES];
+            appendFixed((count - 1) * 1e9 / Math.max(1, newest - oldest));
+        } else {
+            append("-");
+        }
+        draw(g2d, x, y);
+
+        System.arraycopy(paintNanos, 0, sorted, 0, count);
+        Arrays.sort(sorted, 0, count);
+        start("paint ");
+        appendMillis(percentile(count, 50));
+        append(" / ");
+        appendMillis(percentile(count, 90));
+        append(" / ");
+        appendMillis(percentile(count, 99));
+        append(" ms p50/90/99");
+        draw(g2d, x, y += LINE_HEIGHT);
+
+        start("hit   ");
+        appendMillis(hitTestNanos);
+        append(" ms");
+        draw(g2d, x, y += LINE_HEIGHT);
+
+        start("undo  ");
+        appendMillis(historyNanos);
+        append(" ms");
+        draw(g2d, x, y += LINE_HEIGHT);
+
+        start("tubes ");
+        appendLong(tubeCount);
+        draw(g2d, x, y += LINE_HEIGHT);
+
+        start("alloc ");
+        long bytes = count > 0 ? allocatedBytes[(frames - 1) % SAMPLES] : -1;
+        if (bytes >= 0) {
+            appendLong(bytes);
+            append(" B/frame");
+        } else {
+            append("-");
+        }
+        draw(g2d, x, y += LINE_HEIGHT);
+    }
+
+    private long percentile(int count, int percent) {
+        if (count == 0) {
+            return -1;
+        }
+        return sorted[Math.min(count - 1, count * percent / 100)];
+    }
+
+    private void start(String label) {
+        length = 0;
+        append(label);
+    }
+
+    private void append(String s) {
+        int n = Math.min(s.length(), text.length - length);
+        s.getChars(0, n, text, length);
+        length += n;
+    }
+
+    private void appendLong(long value) {
+        if (value < 0) {
+            append("-");
+            value = -value;
+        }
+        int begin = length;
+        do {
+            if (length == text.length) {
+                break;
+            }
+            text[length++] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        // Digits were written lowest first
+        for (int i = begin, j = length - 1; i < j; i++, j--) {
+            char c = text[i];
+            text[i] = text[j];
+            text[j] = c;
+        }
+    }
+
+    /**
+     * Appends a non-negative number with one decimal.
+     */
+    private void appendFixed(double value) {
+        long tenths = Math.round(value * 10);
+        appendLong(tenths / 10);
+        append(".");
+        appendLong(tenths % 10);
+    }
+
+    private void appendMillis(long nanos) {
+        if (nanos < 0) {
+            append("-");
+        } else if (nanos < 10_000_000) {
+            // Two decimals for short times
+            long hundredths = (nanos + 5_000) / 10_000;
+            appendLong(hundredths / 100);
+            append(".");
+            if (hundredths % 100 < 10) {
+                append("0");
+            }
+            appendLong(hundredths % 100);
+        } else {
+            appendFixed(nanos / 1e6);
+        }
+    }
+
+    private void draw(Graphics2D g2d, int x, int y) {
+        g2d.drawChars(text, 0, length, x, y);
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        try {
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+                if (threads.isThreadAllocatedMemorySupported()) {
+                    threads.setThreadAllocatedMemoryEnabled(true);
+                    return threads;
+                }
+            }
+        } catch (UnsupportedOperationException | LinkageError e) {
+            // Not a HotSpot-style JVM; the HUD shows no allocation figure
+        }
+        return null;
+    }
+}
@@ -0,0 +1,300 @@
+import java.awt.Color;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A software renderer specialised for hollow rotated rectangles, writing
+ * straight into an int RGB pixel array.
+ *
+ * Each tube is a few nested rectangles sharing one centre and angle: the
+ * outer and inner edges of the wall, and each of those grown and shrunk by
+ * half the outline width for the stroke. A pixel's coverage of such a
+ * rectangle is the overlap of the pixel with it along the tube's two axes,
+ * so antialiasing needs no supersampling. Each row is clipped to the span
+ * where the tube can touch it, minus the hole in the middle, so the work
+ * follows the length of the walls rather than the tube's area.
+ *
+ * Rows are split into bands that are rendered in parallel on the common
+ * ForkJoin pool. The colours and the one-unit outline match TubePainter at
+ * full detail; there are no reduced levels, as coverage already fades
+ * small tubes out.
+ */
+final class QuadRasterizer {
+
+    private static final int BAND_ROWS = 16;
+    private static final double MIN_HALF_STROKE = 1.0 / 16;
+    private static final int FILL_RGB = TubePainter.TUBE_COLOR.getRGB();
+    private static final int LINE_RGB = TubePainter.OUTLINE_COLOR.getRGB();
+
+    // Per tube, in screen pixels: centre, axis, half sizes of the outer and
+    // inner rectangles (inner negative if solid) and bounding rows
+    private double[] centerX = new double[0], centerY = new double[0];
+    private double[] sin = new double[0], cos = new double[0];
+    private double[] outerA = new double[0], outerB = new double[0];
+    private double[] innerA = new double[0], innerB = new double[0];
+    private int[] rowMin = new int[0], rowMax = new int[0];
+    private IntList[] bands = new IntList[0];
+
+    private int[] pixels;
+    private int width, height;
+    private double halfStroke;
+    private int background;
+
+    /**
+     * Renders the listed tubes except skipId over a background. The view maps
+     * world (x, y) to pixel (x * scale + offsetX, y * scale + offsetY).
+     * Not thread-safe: use one rasterizer per thread.
+     */
+    public void render(int[] pixels, int width, int height, Color background,
+                       TubeStore store, IntList ids, int skipId,
+                       double scale, double offsetX, double offsetY, boolean parallel) {
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+        this.background = background.getRGB() & 0xFFFFFF;
+        // BasicStroke's default width of one unit, no thinner than the
+        // 1/8 pixel Java2D's antialiasing renderer draws at least
+        this.halfStroke = Math.max(0.5 * scale, MIN_HALF_STROKE);
+
+        int count = prepare(store, ids, skipId, scale, offsetX, offsetY);
+        int bandCount = (height + BAND_ROWS - 1) / BAND_ROWS;
+        sortIntoBands(count, bandCount);
+        if (parallel && bandCount > 1) {
+            ForkJoinPool.commonPool().invoke(new BandTask(0, bandCount));
+        } else {
+            for (int band = 0; band < bandCount; band++) {
+                renderBand(band, new double[2]);
+            }
+        }
+        this.pixels = null;
+    }
+
+    /**
+     * Converts the tubes to screen space. Returns how many were kept.
+     */
+    private int prepare(TubeStore store, IntList ids, int skipId,
+                        double scale, double offsetX, double offsetY) {
+        ensureCapacity(ids.size());
+        int count = 0;
+        for (int i = 0; i < ids.size(); i++) {
+            int id = ids.get(i);
+            if (id == skipId) {
+                continue;
+            }
+            double a = store.length(id) * scale / 2, b = store.width(id) * scale / 2;
+            double wall = store.thickness(id) * scale;
+            double s = store.sin(id), c = store.cos(id);
+            double cx = store.x(id) * scale + offsetX, cy = store.y(id) * scale + offsetY;
+            // Rows the stroke plus one pixel of antialiasing can reach
+            double reach = Math.abs(s) * (a + halfStroke) + Math.abs(c) * (b + halfStroke) + 1;
+            int top = Math.max(0, (int) Math.floor(cy - reach));
+            int bottom = Math.min(height - 1, (int) Math.ceil(cy + reach));
+            double halfX = Math.abs(c) * (a + halfStroke) + Math.abs(s) * (b + halfStroke) + 1;
+            if (top > bottom || cx + halfX < 0 || cx - halfX > width) {
+                continue;
+            }
+            centerX[count] = cx;
+            centerY[count] = cy;
+            sin[count] = s;
+            cos[count] = c;
+            outerA[count] = a;
+            outerB[count] = b;
+            boolean hollow = a - wall > 0 && b - wall > 0;
+            innerA[count] = hollow ? a - wall : -1;
+            innerB[count] = hollow ? b - wall : -1;
+            rowMin[count] = top;
+            rowMax[count] = bottom;
+            count++;
+        }
+        return count;
+    }
+
+    private void sortIntoBands(int count, int bandCount) {
+        if (bands.length < bandCount) {
+            bands = new IntList[bandCount];
+            for (int band = 0; band < bandCount; band++) {
+                bands[band] = new IntList();
+            }
+        }
+        for (int band = 0; band < bandCount; band++) {
+            bands[band].clear();
+        }
+        for (int t = 0; t < count; t++) {
+            for (int band = rowMin[t] / BAND_ROWS; band <= rowMax[t] / BAND_ROWS; band++) {
+                bands[band].add(t);
+            }
+        }
+    }
+
+    /**
+     * Renders one band of rows, tubes in z-order.
+     */
+    private void renderBand(int band, double[] span) {
+        int y0 = band * BAND_ROWS, y1 = Math.min(height, y0 + BAND_ROWS);
+        Arrays.fill(pixels, y0 * width, y1 * width, background);
+        IntList tubes = bands[band];
+        for (int i = 0; i < tubes.size(); i++) {
+            int t = tubes.get(i);
+            for (int y = Math.max(y0, rowMin[t]); y < Math.min(y1, rowMax[t] + 1); y++) {
+                renderRow(t, y, span);
+            }
+        }
+    }
+
+    private void renderRow(int t, int y, double[] span) {
+        double s = sin[t], c = cos[t];
+        double dy = y + 0.5 - centerY[t];
+        double a = outerA[t], b = outerB[t], ia = innerA[t], ib = innerB[t];
+        double hs = halfStroke;
+
+        // Pixels whose centre lies within one pixel of the stroked outer edge
+        if (!rectSpan(s, c, dy, a + hs + 1, b + hs + 1, span)) {
+            return;
+        }
+        int x0 = Math.max(0, (int) Math.floor(centerX[t] + span[0]));
+        int x1 = Math.min(width - 1, (int) Math.ceil(centerX[t] + span[1]));
+
+        // Pixels deep enough in the hole that nothing covers them
+        int hole0 = Integer.MAX_VALUE, hole1 = Integer.MIN_VALUE;
+        if (ia > 0 && rectSpan(s, c, dy, ia - hs - 1, ib - hs - 1, span)) {
+            hole0 = (int) Math.ceil(centerX[t] + span[0]);
+            hole1 = (int) Math.floor(centerX[t] + span[1]);
+        }
+
+        int row = y * width;
+        for (int x = x0; x <= x1; x++) {
+            if (x >= hole0 && x <= hole1) {
+                x = hole1;
+                continue;
+            }
+            double dx = x + 0.5 - centerX[t];
+            double lx = Math.abs(dx * c + dy * s);
+            double ly = Math.abs(dy * c - dx * s);
+
+            // Well inside the wall and away from both outlines: plain fill
+            if (lx < a - hs - 1 && ly < b - hs - 1
+                    && (ia <= 0 || lx > ia + hs + 1 || ly > ib + hs + 1)) {
+                pixels[row + x] = FILL_RGB & 0xFFFFFF;
+                continue;
+            }
+            double outerPlus = cover(lx, a + hs) * cover(ly, b + hs);
+            if (outerPlus <= 0) {
+                continue;
+            }
+            double wall = cover(lx, a) * cover(ly, b);
+            double stroke = outerPlus - cover(lx, a - hs) * cover(ly, b - hs);
+            if (ia > 0 && lx < ia + hs + 0.5 && ly < ib + hs + 0.5) { // Near the inner edge
+                wall -= cover(lx, ia) * cover(ly, ib);
+                stroke += cover(lx, ia + hs) * cover(ly, ib + hs)
+                        - cover(lx, ia - hs) * cover(ly, ib - hs);
+            }
+            blend(row + x, wall, Math.min(1, stroke));
+        }
+    }
+
+    /**
+     * Finds the x offsets from the centre, on the row dy below it, where
+     * |local x| <= halfA and |local y| <= halfB. Returns false if empty.
+     */
+    private static boolean rectSpan(double s, double c, double dy, double halfA, double halfB,
+                                    double[] span) {
+        if (halfA <= 0 || halfB <= 0) {
+            return false;
+        }
+        double lo = Double.NEGATIVE_INFINITY, hi = Double.POSITIVE_INFINITY;
+        // Local x = dx * c + dy * s
+        if (Math.abs(c) > 1e-12) {
+            double p = (-halfA - dy * s) / c, q = (halfA - dy * s) / c;
+            lo = Math.max(lo, Math.min(p, q));
+            hi = Math.min(hi, Math.max(p, q));
+        } else if (Math.abs(dy * s) > halfA) {
+            return false;
+        }
+        // Local y = dy * c - dx * s
+        if (Math.abs(s) > 1e-12) {
+            double p = (dy * c - halfB) / s, q = (dy * c + halfB) / s;
+            lo = Math.max(lo, Math.min(p, q));
+            hi = Math.min(hi, Math.max(p, q));
+        } else if (Math.abs(dy * c) > halfB) {
+            return false;
+        }
+        span[0] = lo;
+        span[1] = hi;
+        return lo <= hi;
+    }
+
+    /**
+     * Returns how much of a one-pixel box centred at distance l from the
+     * axis lies within half-size half of it, from 0 to 1.
+     */
+    private static double cover(double l, double half) {
+        if (half <= 0) {
+            return 0;
+        }
+        double overlap = Math.min(l + 0.5, half) - Math.max(l - 0.5, -half);
+        return overlap <= 0 ? 0 : Math.min(overlap, 1);
+    }
+
+    /**
+     * Lays the wall colour and then the outline over one pixel, each with
+     * its coverage, as Java2D's fill followed by draw would.
+     */
+    private void blend(int index, double wall, double stroke) {
+        int rgb = pixels[index];
+        int r = (rgb >> 16) & 0xFF, g = (rgb >> 8) & 0xFF, b = rgb & 0xFF;
+        if (wall > 0) {
+            r += (int) Math.round((((FILL_RGB >> 16) & 0xFF) - r) * wall);
+            g += (int) Math.round((((FILL_RGB >> 8) & 0xFF) - g) * wall);
+            b += (int) Math.round(((FILL_RGB & 0xFF) - b) * wall);
+        }
+        if (stroke > 0) {
+            r += (int) Math.round((((LINE_RGB >> 16) & 0xFF) - r) * stroke);
+            g += (int) Math.round((((LINE_RGB >> 8) & 0xFF) - g) * stroke);
+            b += (int) Math.round(((LINE_RGB & 0xFF) - b) * stroke);
+        }
+        pixels[index] = (r << 16) | (g << 8) | b;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (centerX.length < capacity) {
+            centerX = new double[capacity];
+            centerY = new double[capacity];
+            sin = new double[capacity];
+            cos = new double[capacity];
+            outerA = new double[capacity];
+            outerB = new double[capacity];
+            innerA = new double[capacity];
+            innerB = new double[capacity];
+            rowMin = new int[capacity];
+            rowMax = new int[capacity];
+        }
+    }
+
+    /**
+     * Renders a range of bands, splitting it in two until it is small.
+     */
+    private final class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from, to;
+
+        BandTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 2) {
+                double[] span = new double[2];
+                for (int band = from; band < to; band++) {
+                    renderBand(band, span);
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new BandTask(from, middle), new BandTask(middle, to));
+            }
+        }
+    }
+}
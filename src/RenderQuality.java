@@ -0,0 +1,55 @@
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+
+/**
+ * A rendering quality tier: whether edges are antialiased and how much the
+ * level-of-detail thresholds of TubePainter are raised.
+ *
+ * FULL is used when the view is still. DRAFT is used while the user drags,
+ * pans or zooms; with the defaults it turns antialiasing off and draws any
+ * tube whose wall is under four pixels as a single stroke. Its settings can
+ * be changed with -Dtubes.draft.antialias=true|false and
+ * -Dtubes.draft.detailScale=factor; a factor of 1 keeps the normal detail.
+ */
+final class RenderQuality {
+
+    static final RenderQuality FULL = new RenderQuality("full", true, 1.0);
+    static final RenderQuality DRAFT = new RenderQuality("draft",
+            Boolean.parseBoolean(System.getProperty("tubes.draft.antialias", "false")),
+            TubePainter.doubleProperty("tubes.draft.detailScale", 4.0));
+
+    private final String name;
+    private final boolean antialias;
+    private final double detailScale;
+
+    RenderQuality(String name, boolean antialias, double detailScale) {
+        this.name = name;
+        this.antialias = antialias;
+        this.detailScale = detailScale;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isAntialiased() {
+        return antialias;
+    }
+
+    /**
+     * Sets the antialiasing hint on the graphics and the detail thresholds
+     * on the painter for this tier.
+     */
+    public void apply(Graphics2D g2d, TubePainter painter) {
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, antialias
+                ? RenderingHints.VALUE_ANTIALIAS_ON : RenderingHints.VALUE_ANTIALIAS_OFF);
+        painter.setLevelOfDetail(TubePainter.DEFAULT_WALL_PIXELS * detailScale,
+                TubePainter.DEFAULT_LINE_PIXELS * detailScale,
+                TubePainter.DEFAULT_DOT_PIXELS * detailScale);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
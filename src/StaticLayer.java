@@ -0,0 +1,130 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Transparency;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * A cached image of every tube except the selected one.
+ * While the selected tube is dragged nothing else changes, so each frame
+ * only copies this image and draws the one moving tube on top, however
+ * large the scene is. The image is rendered again only when the scene
+ * version, the left-out tube, the view or the canvas size changes, or to
+ * refine an image drawn at draft quality.
+ *
+ * A BufferedImage is used rather than a VolatileImage: Java2D already
+ * caches it in video memory when it can, and it never loses its contents.
+ *
+ * With the rasterizer switched on, the layer is an int RGB image filled by
+ * a QuadRasterizer instead of through Java2D.
+ */
+class StaticLayer {
+
+    private static final int PADDING = 2; // Screen pixels of stroke and antialiasing
+
+    private final TubePainter painter = new TubePainter();
+    private final IntList ids = new IntList(256);
+    private final Rectangle2D area = new Rectangle2D.Double();
+    private QuadRasterizer rasterizer = null; // Null to draw through Java2D
+
+    private BufferedImage image;
+    private long renderedVersion = -1;
+    private long renderedView = -1;
+    private int renderedSkipId = Integer.MIN_VALUE;
+    private RenderQuality renderedQuality = null;
+
+    /**
+     * Chooses between the QuadRasterizer and Java2D, the default.
+     */
+    public void setRasterizer(boolean enabled) {
+        if (enabled != (rasterizer != null)) {
+            rasterizer = enabled ? new QuadRasterizer() : null;
+            image = null; // The rasterizer needs an int RGB image
+        }
+    }
+
+    /**
+     * Returns the layer for the given state, rendering it first if the
+     * cached image is out of date.
+     */
+    public BufferedImage get(GraphicsConfiguration gc, int width, int height, Color background,
+                             TubeStore store, SpatialIndex index, Camera camera,
+                             long sceneVersion, int skipId, RenderQuality quality) {
+        width = Math.max(width, 1);
+        height = Math.max(height, 1);
+        if (image == null || image.getWidth() != width || image.getHeight() != height) {
+            image = gc != null && rasterizer == null
+                    ? gc.createCompatibleImage(width, height, Transparency.OPAQUE)
+                    : new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            renderedVersion = -1;
+        }
+        if (rasterizer != null) {
+            quality = RenderQuality.FULL; // The rasterizer has only one quality
+        }
+        // A draft request reuses a full-quality image, but a full one
+        // refines a draft image
+        boolean refine = quality == RenderQuality.FULL && renderedQuality != quality;
+        if (renderedVersion != sceneVersion || renderedSkipId != skipId
+                || renderedView != camera.getVersion() || refine) {
+            render(width, height, background, store, index, camera, skipId, quality);
+            renderedVersion = sceneVersion;
+            renderedSkipId = skipId;
+            renderedView = camera.getVersion();
+            renderedQuality = quality;
+        }
+        return image;
+    }
+
+    /**
+     * Returns how many draw calls the last Java2D render made.
+     */
+    public int getDrawCalls() {
+        return painter.getDrawCalls();
+    }
+
+    /**
+     * Drops the cached image so the next get renders it again.
+     */
+    public void invalidate() {
+        renderedVersion = -1;
+    }
+
+    private void render(int width, int height, Color background, TubeStore store,
+                        SpatialIndex index, Camera camera, int skipId, RenderQuality quality) {
+        if (rasterizer != null) {
+            queryVisible(width, height, index, camera);
+            int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            rasterizer.render(pixels, width, height, background, store, ids, skipId,
+                    camera.getScale(), camera.getOffsetX(), camera.getOffsetY(), true);
+            return;
+        }
+        Graphics2D g2d = image.createGraphics();
+        try {
+            g2d.setColor(background);
+            g2d.fillRect(0, 0, width, height);
+            // A fresh image Graphics has no clip, and the painter sizes its
+            // density grid to the clip
+            g2d.setClip(0, 0, width, height);
+            quality.apply(g2d, painter);
+            queryVisible(width, height, index, camera);
+            g2d.transform(camera.getTransform());
+            painter.paintTubes(g2d, store, ids, skipId);
+        } finally {
+            g2d.dispose();
+        }
+    }
+
+    /**
+     * Fills ids with the tubes in view. The margin keeps the strokes of
+     * tubes just outside it.
+     */
+    private void queryVisible(int width, int height, SpatialIndex index, Camera camera) {
+        camera.visibleWorld(width, height, area);
+        double margin = PADDING / camera.getScale();
+        area.setRect(area.getX() - margin, area.getY() - margin,
+                area.getWidth() + 2 * margin, area.getHeight() + 2 * margin);
+        index.query(area, ids);
+    }
+}
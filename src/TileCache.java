@@ -0,0 +1,312 @@
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.swing.SwingUtilities;
+
+/**
+ * The unselected tubes cut into fixed-size tiles, each cached as an image.
+ * A change only invalidates the tiles its bounds overlap, so editing one
+ * tube in a large scene re-renders a tile or two instead of the whole panel.
+ *
+ * Tiles are laid out over the zoomed design rather than the screen, so
+ * panning reuses them as they are and only zooming discards them all.
+ *
+ * Out-of-date tiles are rendered on a pool of worker threads from a store
+ * snapshot, so the EDT never waits for them. Until a tile is ready, its
+ * previous image is shown, or the background if it has none yet. Finished
+ * tiles are handed back on the EDT, which repaints just their area.
+ *
+ * With the rasterizer switched on, each worker fills its tiles with its own
+ * QuadRasterizer, one thread per tile, instead of drawing through Java2D.
+ *
+ * Tiles rendered at draft quality are drawn again at full quality on the
+ * first paint that asks for it, as if they were out of date.
+ */
+class TileCache {
+
+    static final int TILE_SIZE = 256;
+
+    // Margin added around changed bounds and tile queries, for the stroke
+    // and antialiasing that spill over a tube's bounds
+    private static final int PADDING = 2;
+
+    private static final ExecutorService WORKERS = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1), runnable -> {
+                Thread thread = new Thread(runnable, "tile-renderer");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private static final ThreadLocal<QuadRasterizer> RASTERIZERS =
+            ThreadLocal.withInitial(QuadRasterizer::new);
+    private static final ThreadLocal<TubePainter> PAINTERS =
+            ThreadLocal.withInitial(TubePainter::new);
+
+    /**
+     * One tile. Its fields are only touched on the EDT.
+     */
+    private static final class Tile {
+        final int col, row;
+        BufferedImage image;  // Latest finished render, possibly out of date
+        BufferedImage spare;  // Previous render, reused as the next target
+        int stamp = 0;        // Bumped on every invalidation
+        int renderedStamp = -1;
+        boolean pending = false; // A render is queued or running
+        RenderQuality quality = null; // Of the image
+
+        Tile(int col, int row) {
+            this.col = col;
+            this.row = row;
+        }
+    }
+
+    private final Component owner;
+    private final Camera camera;
+    private final Map<Long, Tile> tiles = new HashMap<>();
+    private final IntList ids = new IntList(256);
+    private final Rectangle2D area = new Rectangle2D.Double();
+    private final Rectangle clip = new Rectangle();
+    private double tileScale = Double.NaN; // The zoom the tiles were made at
+    private int visibleCol0, visibleRow0, visibleCol1 = -1, visibleRow1 = -1;
+    private int pending = 0; // Renders queued or running
+    private boolean rasterized = false;
+
+    /**
+     * Creates a cache for the given component, which is repainted as tiles
+     * finish, seen through the given camera.
+     */
+    public TileCache(Component owner, Camera camera) {
+        this.owner = owner;
+        this.camera = camera;
+    }
+
+    /**
+     * Chooses between the QuadRasterizer and Java2D, the default, for tiles
+     * rendered from now on. Call invalidateAll to redo the existing ones.
+     */
+    public void setRasterizer(boolean enabled) {
+        rasterized = enabled;
+    }
+
+    /**
+     * Marks every tile overlapping the world rectangle as out of date.
+     */
+    public void invalidate(Rectangle2D bounds) {
+        if (tiles.isEmpty()) {
+            return;
+        }
+        int col0 = tile(bounds.getMinX() * tileScale - PADDING);
+        int col1 = tile(bounds.getMaxX() * tileScale + PADDING);
+        int row0 = tile(bounds.getMinY() * tileScale - PADDING);
+        int row1 = tile(bounds.getMaxY() * tileScale + PADDING);
+        for (int col = col0; col <= col1; col++) {
+            for (int row = row0; row <= row1; row++) {
+                Tile tile = tiles.get(key(col, row));
+                if (tile != null) {
+                    tile.stamp++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks every tile as out of date.
+     */
+    public void invalidateAll() {
+        for (Tile tile : tiles.values()) {
+            tile.stamp++;
+        }
+    }
+
+    /**
+     * Draws the tiles under the clip, queueing a render for any that are
+     * out of date. Must be called on the EDT.
+     */
+    public void paint(Graphics2D g2d, int width, int height, Color background,
+                      TubeStore store, SpatialIndex index, int skipId, RenderQuality quality) {
+        if (camera.getScale() != tileScale) {
+            tiles.clear(); // Renders still running are ignored when they finish
+            tileScale = camera.getScale();
+        }
+        int offsetX = (int) camera.getOffsetX(), offsetY = (int) camera.getOffsetY();
+        int visibleCol0 = tile(-offsetX), visibleCol1 = tile(width - 1 - offsetX);
+        int visibleRow0 = tile(-offsetY), visibleRow1 = tile(height - 1 - offsetY);
+        if (visibleCol0 != this.visibleCol0 || visibleCol1 != this.visibleCol1
+                || visibleRow0 != this.visibleRow0 || visibleRow1 != this.visibleRow1) {
+            this.visibleCol0 = visibleCol0;
+            this.visibleCol1 = visibleCol1;
+            this.visibleRow0 = visibleRow0;
+            this.visibleRow1 = visibleRow1;
+            dropTilesOutsideView();
+        }
+
+        clip.setBounds(0, 0, width, height); // Kept if there is no clip
+        g2d.getClipBounds(clip);
+        int col0 = Math.max(visibleCol0, tile(clip.x - offsetX));
+        int row0 = Math.max(visibleRow0, tile(clip.y - offsetY));
+        int col1 = Math.min(visibleCol1, tile(clip.x + clip.width - 1 - offsetX));
+        int row1 = Math.min(visibleRow1, tile(clip.y + clip.height - 1 - offsetY));
+
+        TubeStore snapshot = null; // Taken once, only if some tile needs it
+        GraphicsConfiguration gc = owner.getGraphicsConfiguration();
+        for (int col = col0; col <= col1; col++) {
+            for (int row = row0; row <= row1; row++) {
+                Tile tile = tiles.computeIfAbsent(key(col, row), k -> newTile(k));
+                boolean refine = quality == RenderQuality.FULL && tile.quality != quality;
+                if ((tile.renderedStamp != tile.stamp || refine) && !tile.pending) {
+                    if (snapshot == null) {
+                        snapshot = store.snapshot();
+                    }
+                    schedule(tile, gc, background, snapshot, index, skipId, quality);
+                }
+                int x = col * TILE_SIZE + offsetX, y = row * TILE_SIZE + offsetY;
+                if (tile.image != null) {
+                    g2d.drawImage(tile.image, x, y, null);
+                } else {
+                    g2d.setColor(background);
+                    g2d.fillRect(x, y, TILE_SIZE, TILE_SIZE);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of tiles currently held.
+     */
+    public int size() {
+        return tiles.size();
+    }
+
+    /**
+     * Returns the number of tile renders queued or running.
+     */
+    public int pendingCount() {
+        return pending;
+    }
+
+    private void schedule(Tile tile, GraphicsConfiguration gc, Color background,
+                          TubeStore snapshot, SpatialIndex index, int skipId,
+                          RenderQuality quality) {
+        // The index is not thread-safe, so the tile's tubes are looked up here
+        double scale = tileScale;
+        area.setRect((tile.col * TILE_SIZE - PADDING) / scale, (tile.row * TILE_SIZE - PADDING) / scale,
+                (TILE_SIZE + 2 * PADDING) / scale, (TILE_SIZE + 2 * PADDING) / scale);
+        index.query(area, ids);
+        IntList tileIds = new IntList(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            if (ids.get(i) != skipId) {
+                tileIds.add(ids.get(i));
+            }
+        }
+        int stamp = tile.stamp;
+        boolean raster = rasterized;
+        RenderQuality imageQuality = raster ? RenderQuality.FULL : quality;
+        BufferedImage spare = tile.spare; // Never the image on screen
+        // The rasterizer needs an int RGB image
+        BufferedImage target = raster && spare != null
+                && spare.getType() != BufferedImage.TYPE_INT_RGB ? null : spare;
+        tile.spare = null;
+        tile.pending = true;
+        pending++;
+
+        WORKERS.execute(() -> {
+            BufferedImage image = target != null ? target : createImage(raster ? null : gc);
+            if (raster) {
+                rasterize(image, tile, scale, background, snapshot, tileIds);
+            } else {
+                render(image, tile.col, tile.row, scale, background, snapshot, tileIds, imageQuality);
+            }
+            SwingUtilities.invokeLater(() -> finish(tile, image, stamp, imageQuality));
+        });
+    }
+
+    private void finish(Tile tile, BufferedImage image, int stamp, RenderQuality quality) {
+        tile.pending = false;
+        pending--;
+        if (tiles.get(key(tile.col, tile.row)) != tile) {
+            return; // Dropped while rendering
+        }
+        tile.spare = tile.image;
+        tile.image = image;
+        tile.renderedStamp = stamp;
+        tile.quality = quality;
+        // Repaint even if a newer change came in, so that paint queues it
+        owner.repaint(tile.col * TILE_SIZE + (int) camera.getOffsetX(),
+                tile.row * TILE_SIZE + (int) camera.getOffsetY(), TILE_SIZE, TILE_SIZE);
+    }
+
+    /**
+     * Draws the tubes of one tile through Java2D, with tiny ones merged
+     * into density dots. Returns the number of draw calls made.
+     */
+    static int render(BufferedImage image, int col, int row, double scale, Color background,
+                      TubeStore snapshot, IntList ids, RenderQuality quality) {
+        Graphics2D g2d = image.createGraphics();
+        try {
+            g2d.setColor(background);
+            g2d.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+            // A fresh image Graphics has no clip, and the painter sizes its
+            // density grid to the clip
+            g2d.setClip(0, 0, TILE_SIZE, TILE_SIZE);
+            TubePainter painter = PAINTERS.get();
+            quality.apply(g2d, painter);
+            g2d.translate(-col * TILE_SIZE, -row * TILE_SIZE);
+            g2d.scale(scale, scale);
+            painter.paintTubes(g2d, snapshot, ids, -1);
+            return painter.getDrawCalls();
+        } finally {
+            g2d.dispose();
+        }
+    }
+
+    private static void rasterize(BufferedImage image, Tile tile, double scale, Color background,
+                                  TubeStore snapshot, IntList ids) {
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        RASTERIZERS.get().render(pixels, TILE_SIZE, TILE_SIZE, background, snapshot, ids, -1, scale,
+                -tile.col * TILE_SIZE, -tile.row * TILE_SIZE, false);
+    }
+
+    private static BufferedImage createImage(GraphicsConfiguration gc) {
+        return gc != null
+                ? gc.createCompatibleImage(TILE_SIZE, TILE_SIZE, Transparency.OPAQUE)
+                : new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+    }
+
+    /**
+     * Forgets tiles more than one tile away from the view, so memory stays
+     * bounded by the window size however far the view is panned.
+     */
+    private void dropTilesOutsideView() {
+        Iterator<Tile> it = tiles.values().iterator();
+        while (it.hasNext()) {
+            Tile tile = it.next();
+            if (tile.col < visibleCol0 - 1 || tile.col > visibleCol1 + 1
+                    || tile.row < visibleRow0 - 1 || tile.row > visibleRow1 + 1) {
+                it.remove();
+            }
+        }
+    }
+
+    private static Tile newTile(long key) {
+        return new Tile((int) (key >> 32), (int) key);
+    }
+
+    private static int tile(double coordinate) {
+        return (int) Math.floor(coordinate / TILE_SIZE);
+    }
+
+    private static long key(int col, int row) {
+        return ((long) col << 32) | (row & 0xffffffffL);
+    }
+}
@@ -0,0 +1,301 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Stroke;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+
+/**
+ * Draws tubes straight from a TubeStore.
+ * The outline paths are reused and the pixel scale is read once per call,
+ * so the painter itself does not allocate per tube; Java2D's fill and draw
+ * still do.
+ *
+ * With -Dtubes.batch=true, paintTubes puts every tube into one path and
+ * fills and strokes it once, rather than making two calls and two colour
+ * changes per tube. All outlines then lie above all fills, so a tube no
+ * longer hides the outline of one below it. It is off by default: with
+ * the software pipeline the time goes into rasterising, not into the
+ * calls, and one large path rasterises slower than many small ones
+ * beyond about a thousand tubes.
+ *
+ * Detail drops with a tube's size on screen, read from the Graphics
+ * transform. A tube whose wall is thinner than wallPixels is drawn as one
+ * quad along the middle of its wall, stroked as wide as the wall, instead
+ * of two filled and outlined rectangles. Narrower than linePixels, it
+ * becomes a filled quad of its true size, a thick line. Shorter than
+ * dotPixels, it only adds to a density dot on a grid of DOT_CELL_PIXELS
+ * cells, drawn darker the more tubes fall in it.
+ * The defaults can be changed with -Dtubes.lod.wall, -Dtubes.lod.line and
+ * -Dtubes.lod.dot, in screen pixels; 0 turns a level off.
+ */
+class TubePainter {
+
+    static final Color TUBE_COLOR = Color.LIGHT_GRAY;
+    static final Color SELECTED_COLOR = Color.CYAN;
+    static final Color OUTLINE_COLOR = Color.BLACK;
+    // A plain tube with less detail: its fill and outline blurred together
+    static final Color REDUCED_COLOR = Color.GRAY;
+
+    static final double DEFAULT_WALL_PIXELS = doubleProperty("tubes.lod.wall", 1.0);
+    static final double DEFAULT_LINE_PIXELS = doubleProperty("tubes.lod.line", 3.0);
+    static final double DEFAULT_DOT_PIXELS = doubleProperty("tubes.lod.dot", 2.0);
+    static final int DOT_CELL_PIXELS = 2;
+
+    // Dot colours by how many tubes share a cell, one to DOT_SHADES or more
+    private static final int DOT_SHADES = 8;
+    private static final Color[] DOT_COLORS = new Color[DOT_SHADES];
+
+    static {
+        for (int i = 0; i < DOT_SHADES; i++) {
+            int grey = 192 - 96 * i / (DOT_SHADES - 1); // From TUBE_COLOR to GRAY
+            DOT_COLORS[i] = new Color(grey, grey, grey);
+        }
+    }
+
+    private final Path2D.Double tubePath = new Path2D.Double(Path2D.WIND_EVEN_ODD);
+    // Batches of many tubes; non-zero so that overlapping walls stay filled
+    private final Path2D.Double wallPath = new Path2D.Double(Path2D.WIND_NON_ZERO);
+    private final Path2D.Double reducedPath = new Path2D.Double(Path2D.WIND_NON_ZERO);
+    private boolean batched = Boolean.getBoolean("tubes.batch");
+    private int drawCalls;
+    private final Rectangle2D.Double dot = new Rectangle2D.Double();
+    private BasicStroke wallStroke = new BasicStroke(1f); // Reused while the wall stays the same
+    private double wallPixels = DEFAULT_WALL_PIXELS;
+    private double linePixels = DEFAULT_LINE_PIXELS;
+    private double dotPixels = DEFAULT_DOT_PIXELS;
+
+    // Density grid over the clip, in user space, reused between calls
+    private int[] dotCounts = new int[0];
+    private int dotColumns, dotRows;
+    private double dotOriginX, dotOriginY, dotCellSize;
+    private final Rectangle clip = new Rectangle();
+
+    /**
+     * Sets the screen sizes, in pixels, below which tubes are drawn with
+     * less detail. Zero turns a level off.
+     */
+    public void setLevelOfDetail(double wallPixels, double linePixels, double dotPixels) {
+        this.wallPixels = wallPixels;
+        this.linePixels = linePixels;
+        this.dotPixels = dotPixels;
+    }
+
+    /**
+     * Chooses between one batched fill and stroke for all tubes and
+     * drawing tubes one by one in z-order, the default.
+     */
+    public void setBatched(boolean batched) {
+        this.batched = batched;
+    }
+
+    /**
+     * Returns how many fill and draw calls the last paintTubes made.
+     */
+    public int getDrawCalls() {
+        return drawCalls;
+    }
+
+    /**
+     * Paints the listed tubes, leaving out skipId.
+     * Tubes small enough to become dots are drawn last, as one density layer.
+     */
+    public void paintTubes(Graphics2D g2d, TubeStore store, IntList ids, int skipId) {
+        double scale = pixelScale(g2d);
+        drawCalls = 0;
+        if (batched) {
+            wallPath.reset();
+            reducedPath.reset();
+        }
+        boolean gridStarted = false, dots = false; // The grid is only set up once needed
+        for (int i = 0; i < ids.size(); i++) {
+            int id = ids.get(i);
+            if (id == skipId) {
+                continue;
+            }
+            if (store.length(id) * scale < dotPixels) {
+                if (!gridStarted) {
+                    gridStarted = true;
+                    dots = startDots(g2d, scale);
+                }
+                if (dots) {
+                    addDot(store.x(id), store.y(id));
+                    continue;
+                }
+            }
+            if (batched) {
+                appendTube(store, id, scale);
+            } else {
+                paintTube(g2d, store, id, TUBE_COLOR, scale);
+            }
+        }
+        if (batched) {
+            flushBatch(g2d);
+        }
+        if (dots) {
+            paintDots(g2d);
+        }
+    }
+
+    /**
+     * Adds one tube to the batch: full-detail tubes to wallPath, which is
+     * also outlined, and reduced ones to reducedPath. A reduced tube is
+     * its wall, or its whole quad once it is thinner than linePixels.
+     */
+    private void appendTube(TubeStore store, int id, double scale) {
+        double length = store.length(id), width = store.width(id);
+        double thickness = store.thickness(id);
+        if (Math.min(length, width) * scale < linePixels) {
+            TubeGeometry.appendQuad(reducedPath, store.x(id), store.y(id), length, width,
+                    store.sin(id), store.cos(id));
+        } else {
+            Path2D path = thickness * scale < wallPixels ? reducedPath : wallPath;
+            TubeGeometry.appendOutline(path, store.x(id), store.y(id), length, width,
+                    thickness, store.sin(id), store.cos(id));
+        }
+    }
+
+    private void flushBatch(Graphics2D g2d) {
+        fillBatch(g2d, reducedPath, REDUCED_COLOR);
+        fillBatch(g2d, wallPath, TUBE_COLOR);
+        if (wallPath.getCurrentPoint() != null) {
+            g2d.setColor(OUTLINE_COLOR);
+            g2d.draw(wallPath);
+            drawCalls++;
+        }
+    }
+
+    private void fillBatch(Graphics2D g2d, Path2D path, Color color) {
+        if (path.getCurrentPoint() != null) {
+            g2d.setColor(color);
+            g2d.fill(path);
+            drawCalls++;
+        }
+    }
+
+    /**
+     * Fills one tube with the given colour and outlines it. The scale is
+     * the Graphics transform's pixelScale, worked out once by the caller
+     * for all the tubes it paints.
+     */
+    public void paintTube(Graphics2D g2d, TubeStore store, int id, Color fill, double scale) {
+        double length = store.length(id), width = store.width(id);
+        tubePath.reset();
+        if (length * scale < dotPixels) {
+            // Too small to show any shape, but still visible as a cell
+            double size = DOT_CELL_PIXELS / scale;
+            dot.setRect(store.x(id) - size / 2, store.y(id) - size / 2, size, size);
+            g2d.setColor(fill);
+            g2d.fill(dot);
+            drawCalls++;
+            return;
+        }
+        if (Math.min(length, width) * scale < linePixels) {
+            TubeGeometry.appendQuad(tubePath, store.x(id), store.y(id), length, width,
+                    store.sin(id), store.cos(id));
+            g2d.setColor(fill == TUBE_COLOR ? REDUCED_COLOR : fill);
+            g2d.fill(tubePath);
+            drawCalls++;
+            return;
+        }
+        double thickness = store.thickness(id);
+        if (thickness * scale < wallPixels) {
+            TubeGeometry.appendQuad(tubePath, store.x(id), store.y(id), length - thickness,
+                    width - thickness, store.sin(id), store.cos(id));
+            if (wallStroke.getLineWidth() != (float) thickness) {
+                wallStroke = new BasicStroke((float) thickness);
+            }
+            Stroke stroke = g2d.getStroke();
+            g2d.setStroke(wallStroke);
+            g2d.setColor(fill == TUBE_COLOR ? REDUCED_COLOR : fill);
+            g2d.draw(tubePath);
+            g2d.setStroke(stroke);
+            drawCalls++;
+            return;
+        }
+        TubeGeometry.appendOutline(tubePath, store.x(id), store.y(id), length,
+                width, thickness, store.sin(id), store.cos(id));
+
+        g2d.setColor(fill);
+        g2d.fill(tubePath);
+        g2d.setColor(OUTLINE_COLOR);
+        g2d.draw(tubePath);
+        drawCalls += 2;
+    }
+
+    /**
+     * Sizes the density grid to the clip. Returns false if there is no clip
+     * to size it to, in which case small tubes are drawn one by one.
+     */
+    private boolean startDots(Graphics2D g2d, double scale) {
+        // getClipBounds(Rectangle) leaves the rectangle alone if there is
+        // no clip, and unlike getClipBounds() does not allocate
+        clip.setBounds(0, 0, -1, -1);
+        g2d.getClipBounds(clip);
+        if (clip.width < 0) {
+            return false;
+        }
+        dotCellSize = DOT_CELL_PIXELS / scale;
+        dotOriginX = clip.x;
+        dotOriginY = clip.y;
+        dotColumns = (int) Math.ceil(clip.width / dotCellSize) + 1;
+        dotRows = (int) Math.ceil(clip.height / dotCellSize) + 1;
+        long cells = (long) dotColumns * dotRows;
+        if (cells > Integer.MAX_VALUE / 2) {
+            return false;
+        }
+        if (dotCounts.length < cells) {
+            dotCounts = new int[(int) cells];
+        } else {
+            Arrays.fill(dotCounts, 0, (int) cells, 0);
+        }
+        return true;
+    }
+
+    private void addDot(double x, double y) {
+        int col = (int) Math.floor((x - dotOriginX) / dotCellSize);
+        int row = (int) Math.floor((y - dotOriginY) / dotCellSize);
+        if (col >= 0 && col < dotColumns && row >= 0 && row < dotRows) {
+            dotCounts[row * dotColumns + col]++;
+        }
+    }
+
+    private void paintDots(Graphics2D g2d) {
+        for (int row = 0; row < dotRows; row++) {
+            for (int col = 0; col < dotColumns; col++) {
+                int count = dotCounts[row * dotColumns + col];
+                if (count > 0) {
+                    g2d.setColor(DOT_COLORS[Math.min(count, DOT_SHADES) - 1]);
+                    dot.setRect(dotOriginX + col * dotCellSize, dotOriginY + row * dotCellSize,
+                            dotCellSize, dotCellSize);
+                    g2d.fill(dot);
+                    drawCalls++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns how many screen pixels one user-space unit covers. Reading
+     * the transform copies it, so callers do this once, not per tube.
+     */
+    static double pixelScale(Graphics2D g2d) {
+        AffineTransform tx = g2d.getTransform();
+        return Math.sqrt(Math.abs(tx.getDeterminant()));
+    }
+
+    static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}